@@ -0,0 +1,83 @@
+package tech.jcjc.crashcollection;
+
+import android.util.Log;
+
+import tech.jcjc.crashcollection.utils.LogRingBuffer;
+
+/**
+ * 进程内日志捕获接口，用法与{@link Log}相同。日志照常输出到logcat，同时记录到内存中的环形缓冲区，
+ * 崩溃时直接从缓冲区导出，不再需要启动logcat进程。
+ * <p>
+ * 未调用{@link #install(int)}时只转发到{@link Log}，崩溃收集仍使用logcat进程。
+ */
+public class CrashLog {
+    // 默认保留的日志条数，与logcat -t的行数一致
+    public static final int DEFAULT_CAPACITY = 2048;
+
+    private static volatile LogRingBuffer sRingBuffer;
+
+    private CrashLog() {
+    }
+
+    /**
+     * 开启进程内日志捕获，重复调用时保留已有的缓冲区
+     *
+     * @param capacity 最多保留的日志条数
+     */
+    public static synchronized void install(int capacity) {
+        if (sRingBuffer == null || sRingBuffer.getCapacity() < capacity) {
+            sRingBuffer = new LogRingBuffer(capacity);
+        }
+    }
+
+    public static synchronized void uninstall() {
+        sRingBuffer = null;
+    }
+
+    public static boolean isInstalled() {
+        return sRingBuffer != null;
+    }
+
+    /**
+     * @return 未开启时返回null
+     */
+    public static LogRingBuffer getRingBuffer() {
+        return sRingBuffer;
+    }
+
+    public static int v(String tag, String msg) {
+        return println(Log.VERBOSE, tag, msg);
+    }
+
+    public static int d(String tag, String msg) {
+        return println(Log.DEBUG, tag, msg);
+    }
+
+    public static int i(String tag, String msg) {
+        return println(Log.INFO, tag, msg);
+    }
+
+    public static int w(String tag, String msg) {
+        return println(Log.WARN, tag, msg);
+    }
+
+    public static int w(String tag, String msg, Throwable tr) {
+        return println(Log.WARN, tag, msg + '\n' + Log.getStackTraceString(tr));
+    }
+
+    public static int e(String tag, String msg) {
+        return println(Log.ERROR, tag, msg);
+    }
+
+    public static int e(String tag, String msg, Throwable tr) {
+        return println(Log.ERROR, tag, msg + '\n' + Log.getStackTraceString(tr));
+    }
+
+    public static int println(int priority, String tag, String msg) {
+        LogRingBuffer ringBuffer = sRingBuffer;
+        if (ringBuffer != null) {
+            ringBuffer.add(android.os.Process.myPid(), android.os.Process.myTid(), priority, tag, msg);
+        }
+        return Log.println(priority, tag, msg);
+    }
+}
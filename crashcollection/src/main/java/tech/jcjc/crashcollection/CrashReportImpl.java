@@ -2,6 +2,7 @@
 package tech.jcjc.crashcollection;
 
 import android.content.Context;
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.io.File;
@@ -9,16 +10,22 @@ import java.lang.Thread.UncaughtExceptionHandler;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import tech.jcjc.crashcollection.collector.BaseInfoCollector;
+import tech.jcjc.crashcollection.collector.CollectorEngine;
 import tech.jcjc.crashcollection.collector.ContextInfoCollector;
 import tech.jcjc.crashcollection.collector.CustomInfoCollector;
 import tech.jcjc.crashcollection.collector.ICrashCollector;
 import tech.jcjc.crashcollection.collector.MemoryInfoCollector;
+import tech.jcjc.crashcollection.collector.MemorySampler;
 import tech.jcjc.crashcollection.collector.StackInfoCollector;
+import tech.jcjc.crashcollection.collector.ThreadsInfoCollector;
 import tech.jcjc.crashcollection.crashupload.CrashCheckUpload;
 import tech.jcjc.crashcollection.interfaces.ICrashInterface;
+import tech.jcjc.crashcollection.utils.CrashRateLimiter;
 import tech.jcjc.crashcollection.utils.FileUtils;
 import tech.jcjc.crashcollection.utils.ProcessLock;
 
@@ -39,16 +46,75 @@ public class CrashReportImpl implements UncaughtExceptionHandler {
 
     private final List<ICrashCollector> crashCollector = new ArrayList<ICrashCollector>();
 
+    // 卡顿收集使用的收集器，与崩溃收集的实例分开，卡顿收集超时后仍在运行的收集器不会与崩溃收集同时使用同一个实例
+    private final List<ICrashCollector> mStallCollectors = new ArrayList<ICrashCollector>();
+
+    // 卡顿收集的运行标记，与bIsRunning分开，卡顿收集过程中发生的崩溃仍然可以正常收集
+    private final AtomicBoolean mStallRunning = new AtomicBoolean(false);
+
+    // 上一次卡顿的收集线程，其收集器仍在运行时不开始新的卡顿收集
+    private volatile CollectorThread mLastStallThread;
+
+    // 提前启动的收集线程，崩溃时只需要把线程和异常交给它
+    private final AtomicReference<CollectorThread> mStandbyThread = new AtomicReference<CollectorThread>();
+
     public static final int JAVA_CRASH_TYPE = 0;
 
     public static final int NATIVE_CRASH_TYPE = 1;
 
     public static final int BREAKPAD_CAUGHT_CRASH_TYPE = 2;
 
+    // 主线程卡顿，收集完成后进程继续运行
+    public static final int ANR_CRASH_TYPE = 3;
+
     private static final String CRASH_SHARE_PREF_NAME = "crash_config";
 
     private static final String TIME_OUT_EXCEPTION_RECORD = "time_out_ex_time_stamp";
 
+    // 所有收集器的全局超时时间
+    private static final long COLLECT_TIMEOUT = 9000;
+
+    // 等待收集线程的时间，比全局超时时间多留出合并crash_report的时间。崩溃时只等待关键信息落盘
+    private static final long COLLECT_JOIN_TIMEOUT = 10000;
+
+    // 关键信息落盘后等待其余收集器的时间
+    private static final long COLLECT_GRACE_TIME = 500;
+
+    // 默认的OOM预留内存大小
+    public static final int DEFAULT_OOM_RESERVE_SIZE = 512 * 1024;
+
+    private int mOomReserveSize = DEFAULT_OOM_RESERVE_SIZE;
+
+    // 预留内存，发生OOM时释放，给收集日志腾出空间
+    private volatile byte[] mOomReserve;
+
+    // 预先创建的映射crash_report文件名为crash_report.<pid>.slot，放在崩溃目录的上一级，避免被上传逻辑当成无效目录删除。
+    // 每个进程使用自己的文件，否则后启动的进程会截断其他进程已经映射的文件
+    private static final String REPORT_SLOT_PREFIX = "crash_report.";
+
+    private static final String REPORT_SLOT_SUFFIX = ".slot";
+
+    private boolean mMappedReportEnabled;
+
+    private long mMemorySampleInterval = MemorySampler.DEFAULT_INTERVAL;
+
+    private int mMemorySampleCapacity = MemorySampler.DEFAULT_CAPACITY;
+
+    private boolean mKeepProcessStatus = true;
+
+    private MainThreadWatchdog mWatchdog;
+
+    // 频率限制状态的保存目录，放在崩溃目录的上一级
+    private static final String RATE_LIMIT_DIR = "crash_rate";
+
+    private CrashRateLimiter mRateLimiter;
+
+    private boolean mRecordStoreEnabled;
+
+    private int mUploadConcurrency = CrashCheckUpload.DEFAULT_UPLOAD_CONCURRENCY;
+
+    private boolean mUploadRetryEnabled = true;
+
     private CrashReportImpl(Context context) {
         mContext = context;
     }
@@ -69,16 +135,23 @@ public class CrashReportImpl implements UncaughtExceptionHandler {
         try {
             crashInterface = c;
             crashUpload = new CrashCheckUpload(mContext, crashInterface);
+            crashUpload.setUploadConcurrency(mUploadConcurrency);
+            crashUpload.setUploadRetryEnabled(mUploadRetryEnabled);
+            crashUpload.setRecordStoreEnabled(mRecordStoreEnabled);
+
+            // 先启动内存采样，MemoryInfoCollector初始化时根据采样容量预分配缓冲区
+            MemorySampler.start(mMemorySampleInterval, mMemorySampleCapacity);
+
+            addCollectors(crashCollector);
+
+            allocOomReserve();
+
+            mRateLimiter = new CrashRateLimiter(mContext, new File(new File(getJavaCrashFolder()).getParentFile(), RATE_LIMIT_DIR));
 
-            crashCollector.add(new BaseInfoCollector());
-            crashCollector.add(new MemoryInfoCollector());
-            crashCollector.add(new StackInfoCollector());
-            // crashCollector.add(new ObjectInfoCollector());
-            crashCollector.add(new CustomInfoCollector());
-            crashCollector.add(new ContextInfoCollector());
-            for (ICrashCollector collector : crashCollector) {
-                collector.Init(mContext, c);
+            if (mMappedReportEnabled) {
+                cleanStaleReportSlots();
             }
+            startStandbyThread();
         } catch (Exception e) {
             if (AppEnv.ISAPPDEBUG) {
                 e.printStackTrace();
@@ -86,12 +159,225 @@ public class CrashReportImpl implements UncaughtExceptionHandler {
         }
     }
 
+    private void addCollectors(List<ICrashCollector> collectors) {
+        collectors.add(new BaseInfoCollector());
+        collectors.add(new MemoryInfoCollector(mKeepProcessStatus));
+        collectors.add(new StackInfoCollector());
+        collectors.add(new ThreadsInfoCollector());
+        // collectors.add(new ObjectInfoCollector());
+        collectors.add(new CustomInfoCollector());
+        collectors.add(new ContextInfoCollector());
+        for (ICrashCollector collector : collectors) {
+            collector.Init(mContext, crashInterface);
+        }
+    }
+
+    private File getReportSlotFile() {
+        return new File(new File(getJavaCrashFolder()).getParentFile(),
+                REPORT_SLOT_PREFIX + android.os.Process.myPid() + REPORT_SLOT_SUFFIX);
+    }
+
+    /* 删除已经结束的进程留下的crash_report.<pid>.slot，仍在运行的进程的文件不能动 */
+    private void cleanStaleReportSlots() {
+        File[] files = new File(getJavaCrashFolder()).getParentFile().listFiles();
+        if (files == null) {
+            return;
+        }
+        int myPid = android.os.Process.myPid();
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.startsWith(REPORT_SLOT_PREFIX) || !name.endsWith(REPORT_SLOT_SUFFIX)) {
+                continue;
+            }
+            try {
+                // crash_report.slot同时匹配前缀和后缀，substring抛出的异常也按无法识别处理
+                int slotPid = Integer.parseInt(name.substring(REPORT_SLOT_PREFIX.length(), name.length() - REPORT_SLOT_SUFFIX.length()));
+                if (slotPid == myPid || new File("/proc/" + slotPid).exists()) {
+                    continue;
+                }
+            } catch (RuntimeException e) {
+                // 旧版本所有进程共用的crash_report.slot等无法识别的文件
+            }
+            file.delete();
+        }
+    }
+
+    private void startStandbyThread() {
+        // 已有待命线程时不再创建，避免覆盖它预先映射的crash_report.<pid>.slot
+        if (mStandbyThread.get() != null) {
+            return;
+        }
+        CollectorThread standby = new CollectorThread(true, crashCollector);
+        standby.start();
+        if (!mStandbyThread.compareAndSet(null, standby)) {
+            standby.cancel();
+        }
+    }
+
+    /**
+     * 开启主线程卡顿检测，卡顿时以{@link #ANR_CRASH_TYPE}类型运行收集流程，不结束进程，需要在{@link #Init}之后调用
+     *
+     * @param interval 检测间隔(ms)
+     * @param timeout  主线程超过该时间没有响应视为卡顿(ms)
+     */
+    public synchronized void startMainThreadWatchdog(long interval, long timeout) {
+        stopMainThreadWatchdog();
+        if (crashInterface != null && mStallCollectors.isEmpty()) {
+            try {
+                addCollectors(mStallCollectors);
+            } catch (Exception e) {
+                if (AppEnv.ISAPPDEBUG) {
+                    e.printStackTrace();
+                }
+                mStallCollectors.clear();
+                return;
+            }
+        }
+        mWatchdog = new MainThreadWatchdog(interval, timeout, new MainThreadWatchdog.StallListener() {
+            @Override
+            public void onMainThreadStall(Thread mainThread, MainThreadWatchdog.StallException ex) {
+                reportMainThreadStall(mainThread, ex);
+            }
+        });
+        mWatchdog.start();
+    }
+
+    public synchronized void stopMainThreadWatchdog() {
+        if (mWatchdog != null) {
+            mWatchdog.shutdown();
+            mWatchdog = null;
+        }
+    }
+
+    private void reportMainThreadStall(Thread mainThread, Throwable ex) {
+        // 正在处理崩溃时不再收集卡顿
+        if (crashInterface == null || mStallCollectors.isEmpty() || bIsRunning.get()) {
+            return;
+        }
+        // 上一次卡顿超时的收集器还没有结束，不能再次使用这些实例
+        if (mLastStallThread != null && mLastStallThread.isCollecting()) {
+            return;
+        }
+        // 不使用待命线程，崩溃时待命线程仍然可用
+        CollectorThread collectThread = handleException(ANR_CRASH_TYPE, mainThread, ex, SystemClock.elapsedRealtime(),
+                mStallRunning, new CollectorThread(false, mStallCollectors));
+        try {
+            if (collectThread != null && collectThread.isAcquired()) {
+                mLastStallThread = collectThread;
+                // 进程继续运行，不调用uncaughtExceptionResultHandler
+                collectThread.join(COLLECT_JOIN_TIMEOUT);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            if (collectThread == null || collectThread.isAcquired()) {
+                mStallRunning.set(false);
+            }
+        }
+    }
+
+    /**
+     * 设置OOM预留内存的大小，0表示不预留
+     *
+     * @param size 字节数
+     */
+    public void setOomReserveSize(int size) {
+        mOomReserveSize = Math.max(size, 0);
+        if (mOomReserve != null) {
+            allocOomReserve();
+        }
+    }
+
+    private void allocOomReserve() {
+        mOomReserve = null;
+        if (mOomReserveSize > 0) {
+            try {
+                mOomReserve = new byte[mOomReserveSize];
+            } catch (Throwable e) {
+                if (AppEnv.ISAPPDEBUG) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * 是否预先创建并mmap一个crash_report文件，崩溃时各收集器直接写入映射内存，需要在{@link #Init}之前调用
+     *
+     * @param enabled 是否开启
+     */
+    public void setMappedReportEnabled(boolean enabled) {
+        mMappedReportEnabled = enabled;
+    }
+
+    /**
+     * 设置后台内存采样的参数，崩溃时把最近的样本写入crash_report，需要在{@link #Init}之前调用
+     *
+     * @param interval 采样间隔，毫秒，0表示不采样
+     * @param capacity 保留的样本数
+     */
+    public void setMemorySampler(long interval, int capacity) {
+        mMemorySampleInterval = interval;
+        mMemorySampleCapacity = capacity;
+    }
+
+    /**
+     * 是否把/proc/self/status的原始内容保存为附件，其中的主要数值总是写入crash_report，需要在{@link #Init}之前调用
+     *
+     * @param keep 是否保存
+     */
+    public void setKeepProcessStatus(boolean keep) {
+        mKeepProcessStatus = keep;
+    }
+
+    /**
+     * 是否把崩溃目录打包进追加写入的记录存储，上传时顺序读取，不再逐个扫描目录。
+     * 打包在上传过程中进行，只打包上传失败或还在退避期间的目录，打包成功后崩溃目录被删除
+     *
+     * @param enabled 是否开启
+     */
+    public void setRecordStoreEnabled(boolean enabled) {
+        mRecordStoreEnabled = enabled;
+        if (crashUpload != null) {
+            crashUpload.setRecordStoreEnabled(enabled);
+        }
+    }
+
+    /**
+     * 设置上传崩溃日志时同时进行的上传个数，Java、Native和Breakpad的日志共用
+     *
+     * @param concurrency 大于0
+     */
+    public void setUploadConcurrency(int concurrency) {
+        mUploadConcurrency = Math.max(concurrency, 1);
+        if (crashUpload != null) {
+            crashUpload.setUploadConcurrency(mUploadConcurrency);
+        }
+    }
+
+    /**
+     * 是否开启上传失败后的退避重试，默认开启。开启后失败的报告按指数退避推迟，并在后台到时间后自动重新上传
+     *
+     * @param enabled 是否开启
+     */
+    public void setUploadRetryEnabled(boolean enabled) {
+        mUploadRetryEnabled = enabled;
+        if (crashUpload != null) {
+            crashUpload.setUploadRetryEnabled(enabled);
+        }
+    }
+
     public boolean isRunning() {
         return bIsRunning.get();
     }
 
     @Override
     public void uncaughtException(Thread thread, Throwable ex) {
+        long crashTime = SystemClock.elapsedRealtime();
+        if (ICrashCollector.isOutOfMemory(ex)) {
+            // 先释放预留内存，再做其他事情
+            mOomReserve = null;
+        }
         // 立即输出错误
         Log.e("CrashHandler", ex != null ? ex.getMessage() : "null", ex);
 
@@ -106,11 +392,12 @@ public class CrashReportImpl implements UncaughtExceptionHandler {
 //            }
 //        }
 
-        CollectorThread collectThread = handleException(JAVA_CRASH_TYPE, thread, ex);
+        CollectorThread collectThread = handleException(JAVA_CRASH_TYPE, thread, ex, crashTime, bIsRunning, takeStandbyThread());
 
         try {
             if (collectThread != null) {
-                collectThread.join(10000);
+                // 关键信息落盘后即可结束进程，其余收集器的结果不再等待
+                collectThread.awaitCritical(COLLECT_JOIN_TIMEOUT);
             } else {
                 return;
             }
@@ -143,10 +430,11 @@ public class CrashReportImpl implements UncaughtExceptionHandler {
     }
 
     public int nativeUncaughtException(String arg0, String arg1) {
-        CollectorThread collectThread = handleException(NATIVE_CRASH_TYPE, Thread.currentThread(), arg0);
+        CollectorThread collectThread = handleException(NATIVE_CRASH_TYPE, Thread.currentThread(), arg0, SystemClock.elapsedRealtime(),
+                bIsRunning, takeStandbyThread());
         try {
             if (collectThread != null) {
-                collectThread.join(10000);
+                collectThread.awaitCritical(COLLECT_JOIN_TIMEOUT);
                 bIsRunning.set(false);
                 crashInterface.uncaughtExceptionResultHandler(NATIVE_CRASH_TYPE, collectThread.getCollectorRootDir(), collectThread.getCollectorType(), null, null);
                 return collectThread.getCollectorType().ordinal();
@@ -180,25 +468,114 @@ public class CrashReportImpl implements UncaughtExceptionHandler {
     }
 
     class CollectorThread extends Thread {
-        private final Thread thread;
+        private final boolean standby;
+
+        private final CountDownLatch startLatch = new CountDownLatch(1);
+
+        private final CollectorEngine engine;
+
+        private volatile boolean cancelled;
+
+        // 是否由该线程持有运行标记
+        private volatile boolean acquired;
+
+        // 是否已经开始收集
+        private volatile boolean launched;
+
+        private volatile Thread thread;
+
+        private volatile Object ex;
+
+        private volatile int type;
 
-        private final Object ex;
+        private volatile long crashTime;
 
-        private final int type;
+        private volatile String rootDir;
 
-        private String rootDir;
+        // 创建崩溃目录之前根目录的修改时间，登记到索引时用来判断索引是否仍然有效
+        private volatile long rootModified;
 
-        private ICrashInterface.ExceptionAction action;
+        private volatile ICrashInterface.ExceptionAction action;
 
-        public CollectorThread(final int arg0, final Thread arg1, final Object arg2) {
+        /**
+         * @param arg0 是否为待命线程，待命线程启动后挂起，直到{@link #launch()}或{@link #cancel()}
+         * @param arg1 使用的收集器
+         */
+        public CollectorThread(final boolean arg0, final List<ICrashCollector> arg1) {
+            super("CrashCollectorThread");
+            standby = arg0;
+            engine = new CollectorEngine(arg1, COLLECT_TIMEOUT);
+            if (standby) {
+                setDaemon(true);
+                if (mMappedReportEnabled) {
+                    engine.prepareReportSlot(getReportSlotFile());
+                }
+                engine.prepare();
+            }
+        }
+
+        public void setSuppressedCount(final int arg0) {
+            engine.setSuppressedCount(arg0);
+        }
+
+        public void setCrash(final int arg0, final Thread arg1, final Object arg2, final long arg3) {
             type = arg0;
             thread = arg1;
             ex = arg2;
+            crashTime = arg3;
+        }
+
+        /**
+         * 开始收集，待命线程直接唤醒，否则新启动线程
+         */
+        public void launch() {
+            launched = true;
+            if (standby) {
+                startLatch.countDown();
+            } else {
+                start();
+            }
+        }
+
+        /**
+         * 不需要收集时释放待命线程，避免join等到超时
+         */
+        public void cancel() {
+            if (standby) {
+                cancelled = true;
+                startLatch.countDown();
+            }
+        }
+
+        /**
+         * 等待关键信息落盘后结束本次收集，不再等待其余收集器，没有开始收集时直接返回
+         *
+         * @param timeout 最长等待时间(ms)
+         */
+        public void awaitCritical(long timeout) {
+            if (!launched) {
+                return;
+            }
+            engine.awaitCritical(timeout);
+            // 给其余收集器一小段时间，避免Memory、Custom等经常因为进程结束而缺失
+            engine.awaitAll(COLLECT_GRACE_TIME);
+            if (engine.finishReport()) {
+                crashUpload.addCrashFolder(new File(rootDir), type, rootModified);
+            }
         }
 
         @Override
         public void run() {
-            ICrashCollector.FilePrintWriter fileWriter = new ICrashCollector.FilePrintWriter(rootDir);
+            if (standby) {
+                try {
+                    startLatch.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (cancelled) {
+                    return;
+                }
+            }
             // TODO yjl
 //            try {
 //                if (IPC.isPersistentProcess() && ex instanceof OutOfMemoryError) {
@@ -216,40 +593,27 @@ public class CrashReportImpl implements UncaughtExceptionHandler {
 //                //do nothing
 //            }
 
-            // 为了避免logcat丢失的现象，提取收取logcat
-            for (ICrashCollector collector :
-                    crashCollector) {
-                try {
-                    collector.preCollect(type, thread, ex, fileWriter);
-                } catch (Throwable e) {
-                    e.printStackTrace();
-                } finally {
-                    fileWriter.flush();
-                }
-            }
-            for (ICrashCollector collector : crashCollector) {
-                try {
-                    collector.runCollector(type, thread, ex, fileWriter);
-                } catch (Throwable e) {
-                    e.printStackTrace();
-                } finally {
-                    fileWriter.flush();
-                }
-            }
-            fileWriter.close();
-            
-            for (ICrashCollector collector :
-                    crashCollector) {
-                try {
-                    collector.postCollect(type, thread, ex);
-                } catch (Throwable e) {
-                    e.printStackTrace();
-                } finally {
-                    fileWriter.flush();
-                }
+            // 各收集器并行运行，logcat等耗时的收集不再阻塞关键信息的落盘
+            if (engine.collect(type, thread, ex, rootDir, crashTime)) {
+                crashUpload.addCrashFolder(new File(rootDir), type, rootModified);
             }
         }
 
+        /**
+         * @return 是否已经开始收集且还有收集器在运行
+         */
+        public boolean isCollecting() {
+            return launched && !engine.isAllFinished();
+        }
+
+        public boolean isAcquired() {
+            return acquired;
+        }
+
+        public void setAcquired(boolean arg0) {
+            acquired = arg0;
+        }
+
         public String getCollectorRootDir() {
             return rootDir;
         }
@@ -265,59 +629,110 @@ public class CrashReportImpl implements UncaughtExceptionHandler {
         public void setRootDir(String arg0) {
             rootDir = arg0;
         }
+
+        public void setRootModified(long arg0) {
+            rootModified = arg0;
+        }
+    }
+
+    private CollectorThread takeStandbyThread() {
+        CollectorThread collectThread = mStandbyThread.getAndSet(null);
+        if (collectThread == null) {
+            collectThread = new CollectorThread(false, crashCollector);
+        }
+        return collectThread;
     }
 
-    private CollectorThread handleException(int type, final Thread thread, final Object ex) {
-        CollectorThread collectThread = null;
+    /**
+     * @param guard         运行标记，获取成功后由返回的收集线程持有
+     * @param collectThread 本次使用的收集线程
+     */
+    private CollectorThread handleException(int type, final Thread thread, final Object ex, long crashTime, AtomicBoolean guard,
+                                            CollectorThread collectThread) {
         try {
-            collectThread = new CollectorThread(type, thread, ex);
+            collectThread.setCrash(type, thread, ex, crashTime);
             collectThread.setType(ICrashInterface.ExceptionAction.emSkip);
             if (thread == null || ex == null) {
                 collectThread.setType(ICrashInterface.ExceptionAction.emDefault);
+                collectThread.cancel();
                 return collectThread;
             }
 
-            if (!bIsRunning.compareAndSet(false, true)) {
+            if (!guard.compareAndSet(false, true)) {
                 collectThread.setType(ICrashInterface.ExceptionAction.emSkip);
+                collectThread.cancel();
                 return collectThread;
             }
+            collectThread.setAcquired(true);
 
             crashInterface.uncaughtExceptionPreHandler(type, thread, ex);
 
             //先决定是否运行Handler收集日志
             if (!crashInterface.shouldRunHandler(type, thread, ex)) {
                 collectThread.setType(ICrashInterface.ExceptionAction.emRestart);
+                collectThread.cancel();
                 return collectThread;
             }
 
             //再决定是否弹窗
             collectThread.setType(crashInterface.getCrashCollectorType(type, thread, ex));
 
+            //同一崩溃频繁发生时不再生成报告，只记录次数
+            if (isRateLimited(type, ex, collectThread)) {
+                collectThread.cancel();
+                return collectThread;
+            }
+
             String crashFolder = crashInterface.getCrashRootFolder(type, thread, ex);
 
             collectThread.setRootDir(crashFolder);
             File cFile = new File(collectThread.getCollectorRootDir());
             try {
+                File parent = cFile.getParentFile();
+                collectThread.setRootModified(parent != null ? parent.lastModified() : 0);
                 if (cFile.isDirectory()) {
                     FileUtils.deleteDir(cFile.getAbsolutePath());
                 } else {
                     cFile.delete();
                 }
                 if (!cFile.mkdirs()) {
+                    collectThread.cancel();
                     return null;
                 }
             } catch (Exception e) {
                 e.printStackTrace();
             }
-            collectThread.start();
+            collectThread.launch();
         } catch (Exception e) {
             e.printStackTrace();
+            if (collectThread != null) {
+                collectThread.cancel();
+            }
         }
 
         return collectThread;
     }
 
 
+    private boolean isRateLimited(int type, Object ex, CollectorThread collectThread) {
+        if (mRateLimiter == null || !(ex instanceof Throwable) || !(crashInterface instanceof ICrashInterface.IRateLimitProvider)) {
+            return false;
+        }
+        ICrashInterface.RateLimitPolicy policy = ((ICrashInterface.IRateLimitProvider) crashInterface).getRateLimitPolicy(type);
+        if (policy == null) {
+            return false;
+        }
+        int suppressed = mRateLimiter.tryAcquire(StackInfoCollector.getThrowableHashCode(ex), policy.burst, policy.refillInterval);
+        if (suppressed < 0) {
+            if (AppEnv.ISAPPDEBUG) {
+                Log.d(TAG, "crash report is rate limited");
+            }
+            return true;
+        }
+        collectThread.setSuppressedCount(suppressed);
+        return false;
+    }
+
     public boolean checkBreakpadBaseInfoFile() {
         final String breakpadCrashRootPath = CrashReportImpl.getInstance(mContext).getDefaultNativeCrashFolder();
         File breakpadRootFile = new File(breakpadCrashRootPath);
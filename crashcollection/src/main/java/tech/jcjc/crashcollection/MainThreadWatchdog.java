@@ -0,0 +1,115 @@
+package tech.jcjc.crashcollection;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * 主线程卡顿检测。定时向主线程Looper投递一个任务，超过timeout仍未执行时认为主线程卡住，
+ * 抓取主线程当前的堆栈通知{@link StallListener}。同一次卡顿只通知一次，主线程恢复后重新开始检测。
+ */
+public class MainThreadWatchdog extends Thread {
+    private static final String TAG = "MainThreadWatchdog";
+
+    /**
+     * 主线程卡顿时传给收集器的异常，堆栈为检测到卡顿时主线程的堆栈
+     */
+    public static class StallException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private final long mStallTime;
+
+        public StallException(long stallTime, StackTraceElement[] mainStack) {
+            super("main thread blocked for more than " + stallTime + "ms");
+            mStallTime = stallTime;
+            setStackTrace(mainStack);
+        }
+
+        /**
+         * @return 检测到卡顿时主线程已经阻塞的时间(ms)
+         */
+        public long getStallTime() {
+            return mStallTime;
+        }
+    }
+
+    public interface StallListener {
+        void onMainThreadStall(Thread mainThread, StallException ex);
+    }
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private final long mInterval;
+
+    private final long mTimeout;
+
+    private final StallListener mListener;
+
+    // 主线程每执行一次mTicker加1，只在主线程中修改
+    private volatile long mTick;
+
+    private volatile boolean mStopped;
+
+    private final Runnable mTicker = new Runnable() {
+        @Override
+        public void run() {
+            mTick++;
+        }
+    };
+
+    /**
+     * @param interval 检测间隔(ms)
+     * @param timeout  主线程超过该时间没有响应视为卡顿(ms)
+     * @param listener 卡顿回调，在检测线程中调用
+     */
+    public MainThreadWatchdog(long interval, long timeout, StallListener listener) {
+        super("MainThreadWatchdog");
+        setDaemon(true);
+        mInterval = interval;
+        mTimeout = timeout;
+        mListener = listener;
+    }
+
+    public void shutdown() {
+        mStopped = true;
+        interrupt();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!mStopped) {
+                long tick = mTick;
+                mMainHandler.post(mTicker);
+                Thread.sleep(mTimeout);
+                if (mTick == tick && !mStopped) {
+                    onStall(tick);
+                }
+                if (mInterval > mTimeout) {
+                    Thread.sleep(mInterval - mTimeout);
+                }
+            }
+        } catch (InterruptedException e) {
+            // 停止检测
+        }
+    }
+
+    private void onStall(long tick) throws InterruptedException {
+        Thread mainThread = Looper.getMainLooper().getThread();
+        StallException ex = new StallException(mTimeout, mainThread.getStackTrace());
+        if (AppEnv.ISAPPDEBUG) {
+            Log.w(TAG, ex.getMessage(), ex);
+        }
+        try {
+            mListener.onMainThreadStall(mainThread, ex);
+        } catch (Exception e) {
+            if (AppEnv.ISAPPDEBUG) {
+                e.printStackTrace();
+            }
+        }
+        // 同一次卡顿只报告一次，等待主线程恢复
+        while (!mStopped && mTick == tick) {
+            Thread.sleep(Math.max(mInterval, 1));
+        }
+    }
+}
@@ -12,6 +12,7 @@ import java.util.Date;
 import java.util.Locale;
 import java.util.Map;
 
+import tech.jcjc.crashcollection.CrashReportImpl;
 import tech.jcjc.crashcollection.interfaces.ICrashInterface;
 import tech.jcjc.crashcollection.utils.SystemUtil;
 
@@ -49,6 +50,10 @@ public class BaseInfoCollector extends ICrashCollector {
         getImei(context);
     }
 
+    @Override
+    public boolean isCritical() {
+        return true;
+    }
 
     @Override
     public void runCollector(int type, Thread thread, Object ex, FilePrintWriter printWriter) {
@@ -59,6 +64,7 @@ public class BaseInfoCollector extends ICrashCollector {
         try {
             crashHash = getCrashHash(type, ex);
             printWriter.println(makeupKeyValue("CRASH_HASH", crashHash));
+            printWriter.println(makeupKeyValue("CRASH_TYPE", String.valueOf(type)));
 //            printWriter.println(makeupKeyValue(MID, getMid(mContext)));
             printWriter.println(makeupKeyValue("DATE", new SimpleDateFormat("yyyy-M-dd HH:mm:ss", Locale.CHINA).format(new Date())));
             printWriter.println(makeupKeyValue("CRASH_TIME", String.valueOf(currentTime)));
@@ -0,0 +1,476 @@
+package tech.jcjc.crashcollection.collector;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import tech.jcjc.crashcollection.AppEnv;
+import tech.jcjc.crashcollection.utils.FileUtils;
+
+/**
+ * 并行运行各个{@link ICrashCollector}，每个收集器有自己的超时时间，整体受一个全局超时时间限制。
+ * 每个收集器的SUMMARY_FILE先写入各自的临时文件，完成后按注册顺序合并进crash_report，
+ * 关键收集器({@link ICrashCollector#isCritical()})的结果最先落盘，落盘后{@link #awaitCritical(long)}返回，
+ * 崩溃线程可以立即调用{@link #finishReport()}结束本次收集，不再等待其余收集器。
+ * <p>
+ * 一个CollectorEngine只能收集一次，可以通过{@link #prepare()}提前启动工作线程并挂起等待，
+ * 避免崩溃时(尤其是OOM时)再去创建线程。
+ * <p>
+ * 通过{@link #prepareReportSlot(File)}可以预先创建一个mmap的crash_report，崩溃时各收集器直接写入各自的映射区域，
+ * 不再经过临时文件合并。
+ */
+public class CollectorEngine {
+    private static final String TAG = "CollectorEngine";
+
+    private static final String SECTION = "[COLLECTOR]";
+
+    // 收集器的临时文件，进程在收集器完成前结束时可能留在崩溃目录中，上传和打包时忽略
+    public static final String PART_FILE_SUF = ".part";
+
+    private static final String TIMEOUT_VALUE = "timeout";
+
+    private static final String TRUNCATED_VALUE = "truncated";
+
+    // 结束收集时还没有完成、也没有超时的收集器
+    private static final String PENDING_VALUE = "pending";
+
+    private static final int REPORT_SLOT_TAIL_SIZE = 4 * 1024;
+
+    private final List<ICrashCollector> mCollectors;
+
+    private final long mGlobalTimeout;
+
+    private final Thread[] mWorkers;
+
+    private final CountDownLatch[] mLatches;
+
+    private final long[] mCosts;
+
+    private final boolean[] mFinished;
+
+    // 各收集器是否已经等待过(完成或超时)
+    private final boolean[] mAwaited;
+
+    private final String[] mPartFileNames;
+
+    private final ByteBuffer[] mBuffers;
+
+    // [COLLECTOR]部分使用的缓冲区、收集器名和映射区域的保留标记，都在构造时准备好，收集过程中不再分配
+    private final ByteBuffer mTailBuffer;
+
+    private final String[] mCollectorNames;
+
+    private final boolean[] mIncludes;
+
+    private final long[] mBytesWritten;
+
+    private final long[] mWriteNanos;
+
+    // 各收集器在映射文件中的区域序号，关键收集器排在前面，最后一个区域留给[COLLECTOR]
+    private final int[] mRegionIndexes;
+
+    private MappedReportSlot mReportSlot;
+
+    private volatile MappedReportSlot mActiveSlot;
+
+    private final CountDownLatch mStartLatch = new CountDownLatch(1);
+
+    private final AtomicLong mLaunchTime = new AtomicLong(0);
+
+    private final AtomicLong mFirstSectionTime = new AtomicLong(0);
+
+    // 关键收集器全部完成并落盘后放行
+    private final CountDownLatch mCriticalLatch = new CountDownLatch(1);
+
+    // 合并各收集器的结果与结束收集互斥，结束后不再合并
+    private final Object mReportLock = new Object();
+
+    private File mSummaryFile;
+
+    private boolean mReportFinished;
+
+    private boolean mStandby;
+
+    private long mCrashTime;
+
+    private boolean mPrepared;
+
+    private volatile int mType;
+
+    private volatile Thread mThread;
+
+    private volatile Object mEx;
+
+    private volatile String mRootDir;
+
+    private volatile long mStartTime;
+
+    // 频率限制下，本次报告之前被抑制的同类崩溃次数
+    private volatile int mSuppressedCount;
+
+    public CollectorEngine(List<ICrashCollector> collectors, long globalTimeout) {
+        mCollectors = collectors;
+        mGlobalTimeout = globalTimeout;
+        int size = collectors.size();
+        mWorkers = new Thread[size];
+        mLatches = new CountDownLatch[size];
+        mCosts = new long[size];
+        mFinished = new boolean[size];
+        mAwaited = new boolean[size];
+        mPartFileNames = new String[size];
+        mBuffers = new ByteBuffer[size];
+        mBytesWritten = new long[size];
+        mWriteNanos = new long[size];
+        mRegionIndexes = new int[size];
+        mTailBuffer = ByteBuffer.allocateDirect(REPORT_SLOT_TAIL_SIZE);
+        mCollectorNames = new String[size];
+        mIncludes = new boolean[size + 1];
+        int regionIndex = 0;
+        for (int i = 0; i < size; i++) {
+            if (collectors.get(i).isCritical()) {
+                mRegionIndexes[i] = regionIndex++;
+            }
+        }
+        for (int i = 0; i < size; i++) {
+            if (!collectors.get(i).isCritical()) {
+                mRegionIndexes[i] = regionIndex++;
+            }
+        }
+        for (int i = 0; i < size; i++) {
+            mLatches[i] = new CountDownLatch(1);
+            mBuffers[i] = ByteBuffer.allocateDirect(ICrashCollector.FilePrintWriter.DEFAULT_BUFFER_SIZE);
+            mPartFileNames[i] = ICrashCollector.SUMMARY_FILE + "." + i + PART_FILE_SUF;
+            mCollectorNames[i] = collectors.get(i).getClass().getSimpleName() + "=";
+            mWorkers[i] = new CollectorWorker(i, collectors.get(i));
+        }
+    }
+
+    /**
+     * 提前启动所有工作线程，挂起直到{@link #collect}被调用
+     */
+    public synchronized void prepare() {
+        if (mPrepared) {
+            return;
+        }
+        for (Thread worker : mWorkers) {
+            worker.start();
+        }
+        mPrepared = true;
+    }
+
+    public synchronized boolean isPrepared() {
+        return mPrepared;
+    }
+
+    /**
+     * 预先创建映射的crash_report，需要在{@link #collect}之前调用
+     *
+     * @param slotFile 预分配的文件，应与崩溃目录在同一个文件系统上，崩溃时会被移动到崩溃目录下
+     * @return 是否成功
+     */
+    public synchronized boolean prepareReportSlot(File slotFile) {
+        int size = mCollectors.size();
+        int[] regionSizes = new int[size + 1];
+        for (int i = 0; i < size; i++) {
+            regionSizes[mRegionIndexes[i]] = mCollectors.get(i).getSummaryCapacity();
+        }
+        regionSizes[size] = REPORT_SLOT_TAIL_SIZE;
+        mReportSlot = MappedReportSlot.create(slotFile, regionSizes);
+        return mReportSlot != null;
+    }
+
+    private class CollectorWorker extends Thread {
+        private final int mIndex;
+
+        private final ICrashCollector mCollector;
+
+        CollectorWorker(int index, ICrashCollector collector) {
+            super("CrashCollector-" + collector.getClass().getSimpleName());
+            mIndex = index;
+            mCollector = collector;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                mStartLatch.await();
+            } catch (InterruptedException e) {
+                return;
+            }
+            mLaunchTime.compareAndSet(0, SystemClock.elapsedRealtime());
+
+            MappedReportSlot slot = mActiveSlot;
+            ICrashCollector.FilePrintWriter fileWriter = new ICrashCollector.FilePrintWriter(mRootDir, mPartFileNames[mIndex], mBuffers[mIndex],
+                    slot != null ? slot.getRegion(mRegionIndexes[mIndex]) : null);
+            fileWriter.setDeadline(mStartTime + Math.min(mCollector.getTimeout(), mGlobalTimeout));
+            try {
+                mCollector.preCollect(mType, mThread, mEx, fileWriter);
+                fileWriter.flush();
+                mCollector.runCollector(mType, mThread, mEx, fileWriter);
+            } catch (Throwable e) {
+                e.printStackTrace();
+            } finally {
+                fileWriter.close();
+            }
+            mBytesWritten[mIndex] = fileWriter.getBytesWritten();
+            mWriteNanos[mIndex] = fileWriter.getWriteNanos();
+            mFirstSectionTime.compareAndSet(0, SystemClock.elapsedRealtime());
+
+            try {
+                mCollector.postCollect(mType, mThread, mEx);
+            } catch (Throwable e) {
+                e.printStackTrace();
+            }
+            mCosts[mIndex] = SystemClock.elapsedRealtime() - mStartTime;
+            mLatches[mIndex].countDown();
+        }
+    }
+
+    /**
+     * @return 所有收集器是否都已经运行结束，超时后仍在运行的收集器会使其返回false
+     */
+    public boolean isAllFinished() {
+        for (CountDownLatch latch : mLatches) {
+            if (latch.getCount() > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void setSuppressedCount(int count) {
+        mSuppressedCount = count;
+    }
+
+    /**
+     * 收集一次崩溃信息，最迟在全局超时时间后返回
+     *
+     * @param type      崩溃类型
+     * @param thread    崩溃线程
+     * @param ex        异常
+     * @param rootDir   本次崩溃的目录
+     * @param crashTime 进入崩溃处理的时间(SystemClock.elapsedRealtime)，用于统计落盘延迟
+     * @return 是否由本次调用结束收集，已经被{@link #finishReport()}提前结束时返回false
+     */
+    public boolean collect(int type, Thread thread, Object ex, String rootDir, long crashTime) {
+        int size = mCollectors.size();
+        try {
+            mType = type;
+            mThread = thread;
+            mEx = ex;
+            mRootDir = rootDir;
+            mStartTime = SystemClock.elapsedRealtime();
+            MappedReportSlot slot;
+            synchronized (this) {
+                slot = mReportSlot;
+                mReportSlot = null;
+            }
+            File summaryFile = new File(rootDir, ICrashCollector.SUMMARY_FILE);
+            if (slot != null && !slot.moveTo(summaryFile)) {
+                slot.discard();
+                slot = null;
+            }
+            mActiveSlot = slot;
+            boolean standby = isPrepared();
+            synchronized (mReportLock) {
+                mSummaryFile = summaryFile;
+                mStandby = standby;
+                mCrashTime = crashTime;
+            }
+            prepare();
+            mStartLatch.countDown();
+
+            // 先等待关键收集器，保证关键信息最先落盘
+            for (int i = 0; i < size; i++) {
+                if (mCollectors.get(i).isCritical()) {
+                    awaitAndMerge(i);
+                }
+            }
+        } finally {
+            mCriticalLatch.countDown();
+        }
+        for (int i = 0; i < size; i++) {
+            if (!mCollectors.get(i).isCritical()) {
+                awaitAndMerge(i);
+            }
+        }
+
+        boolean finished = finishReport();
+        if (AppEnv.ISAPPDEBUG) {
+            Log.d(TAG, "collect finished in " + (SystemClock.elapsedRealtime() - mStartTime) + "ms, standby:" + mStandby);
+        }
+        return finished;
+    }
+
+    /**
+     * 等待关键收集器完成并写入crash_report
+     *
+     * @param timeout 超时时间(ms)
+     * @return 是否在超时前完成
+     */
+    public boolean awaitCritical(long timeout) {
+        try {
+            return mCriticalLatch.await(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 等待其余收集器完成，最迟到各自的超时时间，已经完成的结果由收集线程写入crash_report
+     *
+     * @param timeout 最长等待时间(ms)
+     * @return 是否全部完成
+     */
+    public boolean awaitAll(long timeout) {
+        long deadline = SystemClock.elapsedRealtime() + timeout;
+        int size = mCollectors.size();
+        for (int i = 0; i < size; i++) {
+            long collectorDeadline = mStartTime + Math.min(mCollectors.get(i).getTimeout(), mGlobalTimeout);
+            long remain = Math.min(deadline, collectorDeadline) - SystemClock.elapsedRealtime();
+            try {
+                if (!mLatches[i].await(Math.max(remain, 0), TimeUnit.MILLISECONDS)) {
+                    return false;
+                }
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 写入[COLLECTOR]并结束本次收集，之后完成的收集器不再写入crash_report。
+     * 可以在收集线程之外调用，只有第一次调用生效
+     *
+     * @return 是否由本次调用结束，收集还没有开始或已经结束时返回false
+     */
+    public boolean finishReport() {
+        synchronized (mReportLock) {
+            if (mReportFinished || mSummaryFile == null) {
+                return false;
+            }
+            MappedReportSlot slot = mActiveSlot;
+            int size = mCollectors.size();
+            // 已经完成但还没有轮到合并的收集器，现在合并
+            for (int i = 0; i < size; i++) {
+                if (!mAwaited[i] && mLatches[i].getCount() == 0) {
+                    merge(i, true);
+                } else if (!mAwaited[i] && slot == null) {
+                    // 还在运行的收集器，进程可能随后被结束，不留下不完整的临时文件
+                    new File(mRootDir, mPartFileNames[i]).delete();
+                }
+            }
+            mReportFinished = true;
+            ICrashCollector.FilePrintWriter fileWriter = new ICrashCollector.FilePrintWriter(mRootDir, ICrashCollector.SUMMARY_FILE, mTailBuffer,
+                    slot != null ? slot.getRegion(size) : null);
+            fileWriter.setFile(ICrashCollector.SUMMARY_FILE);
+            fileWriter.println(SECTION);
+            fileWriter.print("STANDBY=");
+            fileWriter.println(mStandby ? "true" : "false");
+            fileWriter.print("MAPPED=");
+            fileWriter.println(slot != null ? "true" : "false");
+            printDelay(fileWriter, "LAUNCH_DELAY=", mLaunchTime.get(), mCrashTime);
+            printDelay(fileWriter, "FIRST_SECTION_DELAY=", mFirstSectionTime.get(), mCrashTime);
+            printValue(fileWriter, "SUPPRESSED=", mSuppressedCount);
+            long bytesWritten = 0;
+            long writeNanos = 0;
+            for (int i = 0; i < size; i++) {
+                if (mFinished[i]) {
+                    bytesWritten += mBytesWritten[i];
+                    writeNanos += mWriteNanos[i];
+                }
+            }
+            // 只统计各收集器通过FilePrintWriter写入的部分，合并crash_report的拷贝不计入
+            printValue(fileWriter, "IO_BYTES=", bytesWritten);
+            printValue(fileWriter, "IO_TIME_US=", writeNanos / 1000);
+            for (int i = 0; i < size; i++) {
+                fileWriter.print(mCollectorNames[i]);
+                if (mFinished[i]) {
+                    fileWriter.print(mCosts[i]);
+                    if (slot != null && slot.getRegion(mRegionIndexes[i]).isTruncated()) {
+                        fileWriter.print(",");
+                        fileWriter.print(TRUNCATED_VALUE);
+                    }
+                } else {
+                    fileWriter.print(mAwaited[i] ? TIMEOUT_VALUE : PENDING_VALUE);
+                }
+                fileWriter.println();
+            }
+            fileWriter.println();
+            fileWriter.close();
+
+            if (slot != null) {
+                // 超时的收集器可能还在写，其区域内容不完整，不保留
+                for (int i = 0; i < size; i++) {
+                    mIncludes[mRegionIndexes[i]] = mFinished[i];
+                }
+                mIncludes[size] = true;
+                slot.finish(mIncludes);
+            }
+            return true;
+        }
+    }
+
+    private void awaitAndMerge(int index) {
+        long timeout = Math.min(mCollectors.get(index).getTimeout(), mGlobalTimeout);
+        long remain = mStartTime + timeout - SystemClock.elapsedRealtime();
+        boolean finished = false;
+        try {
+            finished = mLatches[index].await(Math.max(remain, 0), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            // ignore
+        }
+
+        synchronized (mReportLock) {
+            if (mReportFinished) {
+                // 已经提前结束，结果不再写入
+                if (mActiveSlot == null && !mAwaited[index]) {
+                    new File(mRootDir, mPartFileNames[index]).delete();
+                }
+                return;
+            }
+            if (!mAwaited[index]) {
+                merge(index, finished);
+            }
+        }
+    }
+
+    /* 在mReportLock中调用 */
+    private void merge(int index, boolean finished) {
+        mFinished[index] = finished;
+        mAwaited[index] = true;
+        if (mActiveSlot != null) {
+            return;
+        }
+
+        // 超时的收集器可能还在写临时文件，其内容不完整，不合并
+        File partFile = new File(mRootDir, mPartFileNames[index]);
+        if (finished) {
+            FileUtils.appendFile(partFile, mSummaryFile);
+        }
+        partFile.delete();
+    }
+
+    private static void printDelay(ICrashCollector.FilePrintWriter fileWriter, String key, long time, long crashTime) {
+        if (time == 0) {
+            fileWriter.print(key);
+            fileWriter.println(TIMEOUT_VALUE);
+        } else {
+            printValue(fileWriter, key, time - crashTime);
+        }
+    }
+
+    private static void printValue(ICrashCollector.FilePrintWriter fileWriter, String key, long value) {
+        fileWriter.print(key);
+        fileWriter.print(value);
+        fileWriter.println();
+    }
+}
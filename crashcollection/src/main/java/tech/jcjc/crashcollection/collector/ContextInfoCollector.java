@@ -1,13 +1,17 @@
 package tech.jcjc.crashcollection.collector;
 
 import android.content.Context;
+import android.os.SystemClock;
 
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.util.ArrayList;
+import java.util.Calendar;
 
+import tech.jcjc.crashcollection.CrashLog;
 import tech.jcjc.crashcollection.interfaces.ICrashInterface;
-import tech.jcjc.crashcollection.utils.FileUtils;
+import tech.jcjc.crashcollection.utils.LogRingBuffer;
 
 
 public class ContextInfoCollector extends ICrashCollector {
@@ -15,11 +19,25 @@ public class ContextInfoCollector extends ICrashCollector {
     private static final long MAX_LOGCAT_LIMIT = 2000;
     private final String LOG_FILE_NAME = "logcat.log";
     private static final long HANDLER_TIME = 6;
+    // 轮询logcat进程是否退出的初始间隔和最大间隔
+    private static final long POLL_INTERVAL_MIN = 5;
+    private static final long POLL_INTERVAL_MAX = 500;
+    // 杀死logcat进程后读取logcat.log留出的时间
+    private static final long READ_LOG_TIME = 1000;
     
     private static final String TAG = "[CONTEXT]";
 
     private String mLogFilePath;
     private Process logcatProc;
+    // logcat进程的启动时间(SystemClock.elapsedRealtime)
+    private long mLogcatStartTime;
+    // OOM时不把logcat读入内存，直接保留logcat.log作为附件上传
+    private boolean mKeepLogFile;
+    // 开启了CrashLog时直接从进程内的环形缓冲区导出日志，不再启动logcat进程
+    private LogRingBuffer mRingBuffer;
+    private final RingLogWriter mRingLogWriter = new RingLogWriter();
+    // 分块拷贝logcat.log的缓冲区，提前分配，崩溃时占用的内存与日志大小无关
+    private final byte[] mCopyBuffer = new byte[8 * 1024];
     
     private Context mContext;
     private ICrashInterface mCrashInterface;
@@ -29,35 +47,70 @@ public class ContextInfoCollector extends ICrashCollector {
         mCrashInterface = c;
     }
 
+    @Override
+    public long getTimeout() {
+        // logcat进程最多等待HANDLER_TIME秒，再留出读文件的时间
+        return HANDLER_TIME * 1000 + READ_LOG_TIME;
+    }
+
+    @Override
+    public int getSummaryCapacity() {
+        // MAX_LOGCAT_LIMIT行logcat
+        return 1024 * 1024;
+    }
+
     @Override
     public void preCollect(int type, Thread thread, Object ex, FilePrintWriter printWriter) {
         mLogFilePath = printWriter.getRootDirectory() + LOG_FILE_NAME;
-        logcatProc = getLogcatToFile(mLogFilePath, MAX_LOGCAT_LIMIT);
+        mKeepLogFile = isOutOfMemory(ex);
+        mRingBuffer = CrashLog.getRingBuffer();
+        if (mRingBuffer == null) {
+            mLogcatStartTime = SystemClock.elapsedRealtime();
+            logcatProc = getLogcatToFile(mLogFilePath, MAX_LOGCAT_LIMIT);
+        }
     }
 
     @Override
     public void runCollector(int type, Thread thread, Object ex, FilePrintWriter printWriter) {
-        killIndividualProc(logcatProc);
+        if (mRingBuffer != null) {
+            printWriter.setFile(SUMMARY_FILE);
+            printWriter.println(TAG);
+            // 逐条写入，OOM时也不需要额外的内存
+            if (mRingBuffer.getTotalCount() > 0) {
+                printWriter.print("LOGCAT=\"\r\n\t");
+                mRingLogWriter.setWriter(printWriter);
+                mRingBuffer.visit((int) MAX_LOGCAT_LIMIT, mRingLogWriter);
+                mRingLogWriter.setWriter(null);
+                printWriter.println("\t\"");
+            }
+            printWriter.println();
+            return;
+        }
+
+        // 按引擎给出的截止时间等待logcat进程，没有截止时间时最多等待HANDLER_TIME秒
+        long deadline = printWriter.getDeadline() > 0 ? printWriter.getDeadline() - READ_LOG_TIME : mLogcatStartTime + HANDLER_TIME * 1000;
+        boolean logcatKilled = killIndividualProc(logcatProc, deadline);
+        long logcatEndTime = SystemClock.elapsedRealtime();
         printWriter.setFile(SUMMARY_FILE);
         printWriter.println(TAG);
+        if (logcatProc != null) {
+            // 记录logcat进程的耗时，用于统计各机型的差异
+            printWriter.println("LOGCAT_TIME=" + (logcatEndTime - mLogcatStartTime));
+            printWriter.println("LOGCAT_KILLED=" + logcatKilled);
+        }
         
         File logcatFile = new File(mLogFilePath);
-        if (logcatFile.exists()) {
-            byte[] logcatBytes = FileUtils.readFileByte(logcatFile);
-            if (logcatBytes != null) {
-                String logcatStr = new String(logcatBytes);
-                if (!"".equals(logcatStr)) {
-                    printWriter.println(makeupKeyValue("LOGCAT", logcatStr));
-                }
-            }
-            
+        if (mKeepLogFile) {
+            printWriter.println(makeupKeyValue("LOGCAT_FILE", LOG_FILE_NAME));
+        } else if (logcatFile.exists() && logcatFile.length() > 0) {
+            copyIndented(logcatFile, "LOGCAT", printWriter);
         }
         printWriter.println();
     }
 
     @Override
     public void postCollect(int type, Thread thread, Object ex) {
-        if (mLogFilePath != null) {
+        if (mLogFilePath != null && !mKeepLogFile) {
             File file = new File(mLogFilePath);
             if (file.exists()) {
                 file.delete();
@@ -85,37 +138,132 @@ public class ContextInfoCollector extends ICrashCollector {
         }
     }
 
-    /* 在某些三星机型上，logcat输出进程不能自动退出，故每隔1秒钟查看一次，最后仍未退出则杀死 */
-    private void killIndividualProc(Process vLogProc) {
+    /* 分块读取文件，写入时在每个换行后加上ini要求的缩进，与makeupKeyValue的多行格式一致 */
+    private void copyIndented(File file, String key, FilePrintWriter printWriter) {
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            printWriter.print(key);
+            printWriter.print("=\"\r\n\t");
+            int count;
+            while ((count = in.read(mCopyBuffer)) > 0) {
+                int start = 0;
+                for (int i = 0; i < count; i++) {
+                    if (mCopyBuffer[i] == '\n') {
+                        printWriter.write(mCopyBuffer, start, i + 1 - start);
+                        printWriter.print("\t");
+                        start = i + 1;
+                    }
+                }
+                if (start < count) {
+                    printWriter.write(mCopyBuffer, start, count - start);
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            if (in != null) {
+                // 读取中途出错时也要闭合引号，保证ini格式完整
+                printWriter.println("\t\"");
+                try {
+                    in.close();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /* 在某些三星机型上，logcat输出进程不能自动退出，故从5ms开始按指数退避查看，到deadline仍未退出则杀死 */
+    private boolean killIndividualProc(Process vLogProc, long deadline) {
         if (null == vLogProc) {
-            return;
+            return false;
         }
-        long count = HANDLER_TIME;
+        boolean exited = false;
+        long interval = POLL_INTERVAL_MIN;
         try {
-            do {
+            while (true) {
+                long remain = deadline - SystemClock.elapsedRealtime();
                 try {
                     vLogProc.exitValue();
+                    exited = true;
                     break;
-                } catch (IllegalThreadStateException illegThreadStateEx) {
-                    Thread.sleep(1000);
-                    count--;
-                    continue;
                 } catch (Exception e) {
-                    if (count == HANDLER_TIME) {
-                        try {
-                            Thread.sleep(2000);
-                        } catch (Exception e1) {
-                            e1.printStackTrace();
-                        }
+                    // 还没有退出时抛出IllegalThreadStateException，其他异常同样无法判断进程状态，都按退避继续查看
+                    if (remain <= 0) {
+                        break;
                     }
-                    break;
+                    Thread.sleep(Math.min(interval, remain));
+                    interval = Math.min(interval * 2, POLL_INTERVAL_MAX);
                 }
-            } while (count > 0);
+            }
 
             vLogProc.destroy();
         } catch (Exception e) {
             e.printStackTrace();
         }
-        return;
+        return !exited;
+    }
+
+    /* 按logcat -v time的格式输出环形缓冲区中的日志，每行后面加上ini要求的缩进 */
+    private static class RingLogWriter implements LogRingBuffer.Visitor {
+        private static final String PRIORITY_CHARS = "??VDIWEA";
+
+        private final Calendar mCalendar = Calendar.getInstance();
+
+        private FilePrintWriter mWriter;
+
+        void setWriter(FilePrintWriter writer) {
+            mWriter = writer;
+        }
+
+        @Override
+        public void visit(LogRingBuffer.Entry entry) {
+            mCalendar.setTimeInMillis(entry.timeMillis);
+            printNumber(mCalendar.get(Calendar.MONTH) + 1, 2);
+            mWriter.print("-");
+            printNumber(mCalendar.get(Calendar.DAY_OF_MONTH), 2);
+            mWriter.print(" ");
+            printNumber(mCalendar.get(Calendar.HOUR_OF_DAY), 2);
+            mWriter.print(":");
+            printNumber(mCalendar.get(Calendar.MINUTE), 2);
+            mWriter.print(":");
+            printNumber(mCalendar.get(Calendar.SECOND), 2);
+            mWriter.print(".");
+            printNumber(mCalendar.get(Calendar.MILLISECOND), 3);
+            mWriter.print(" ");
+            int priority = entry.priority >= 0 && entry.priority < PRIORITY_CHARS.length() ? entry.priority : 0;
+            mWriter.print(PRIORITY_CHARS, priority, priority + 1);
+            mWriter.print("/");
+            mWriter.print(entry.tag != null ? entry.tag : "null");
+            mWriter.print("(");
+            printNumber(entry.tid, 5, ' ');
+            mWriter.print("): ");
+            String message = entry.message != null ? entry.message : "null";
+            int start = 0;
+            int index;
+            while ((index = message.indexOf('\n', start)) >= 0) {
+                mWriter.print(message, start, index);
+                mWriter.print("\n\t");
+                start = index + 1;
+            }
+            mWriter.print(message, start, message.length());
+            mWriter.print("\n\t");
+        }
+
+        private void printNumber(long value, int width) {
+            printNumber(value, width, '0');
+        }
+
+        private void printNumber(long value, int width, char pad) {
+            long limit = 1;
+            for (int i = 1; i < width; i++) {
+                limit *= 10;
+                if (value < limit) {
+                    mWriter.print(pad == '0' ? "0" : " ");
+                }
+            }
+            mWriter.print(value);
+        }
     }
 }
@@ -6,7 +6,9 @@ import android.text.TextUtils;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Properties;
 
 import tech.jcjc.crashcollection.interfaces.ICrashInterface;
@@ -40,30 +42,120 @@ public abstract class ICrashCollector {
      */
     public void postCollect(int type, Thread thread, Object ex){};
 
+    /**
+     * 收集器各自的超时时间(ms)，超时后该收集器在crash_report中被标记为timeout，其结果不再等待
+     * @return
+     */
+    public long getTimeout() {
+        return DEFAULT_COLLECT_TIMEOUT;
+    }
+
+    /**
+     * 是否为关键收集器，关键收集器的结果会最先写入crash_report
+     * @return
+     */
+    public boolean isCritical() {
+        return false;
+    }
+
+    /**
+     * 使用映射的crash_report时，为该收集器预留的空间大小(字节)，超出部分被丢弃
+     * @return
+     */
+    public int getSummaryCapacity() {
+        return DEFAULT_SUMMARY_CAPACITY;
+    }
+
     public static final String SUMMARY_FILE = "crash_report";
 
+    public static final long DEFAULT_COLLECT_TIMEOUT = 3000;
+
+    public static final int DEFAULT_SUMMARY_CAPACITY = 64 * 1024;
+
+    private static final int MAX_CAUSE_DEPTH = 20;
+
     private static String mProcessName;
 
+    /**
+     * 带缓冲的文件写入器，字符直接按UTF-8编码进固定大小的ByteBuffer，缓冲区满或flush时通过FileChannel写盘。
+     * 切换文件时复用同一个缓冲区，并统计写入的字节数和耗时。非线程安全。
+     * 指定了{@link MappedReportSlot.Region}时，SUMMARY_FILE的内容写入该映射区域而不是文件。
+     */
     public static class FilePrintWriter {
+        public static final int DEFAULT_BUFFER_SIZE = 8 * 1024;
+
         private String fileName;
 
         private final String rootDir;
 
-        private FileWriter fileWriter;
+        // 并行收集时，每个收集器的SUMMARY_FILE先写到各自的临时文件中，最后再按顺序合并
+        private final String summaryFile;
+
+        private final ByteBuffer buffer;
+
+        private final MappedReportSlot.Region summaryRegion;
+
+        // 当前是否写入映射区域
+        private boolean mapped;
+
+        private FileOutputStream outputStream;
+
+        private FileChannel channel;
+
+        private long bytesWritten;
+
+        private long writeCount;
+
+        private long writeNanos;
+
+        // 收集器必须结束的时间(SystemClock.elapsedRealtime)，由CollectorEngine设置，0表示没有限制
+        private long deadline;
 
         public FilePrintWriter(String arg0) {
+            this(arg0, SUMMARY_FILE);
+        }
+
+        public FilePrintWriter(String arg0, String arg1) {
+            this(arg0, arg1, null);
+        }
+
+        /**
+         * @param arg0 根目录
+         * @param arg1 SUMMARY_FILE实际写入的文件名
+         * @param arg2 预先分配的缓冲区，为null时新分配
+         */
+        public FilePrintWriter(String arg0, String arg1, ByteBuffer arg2) {
+            this(arg0, arg1, arg2, null);
+        }
+
+        /**
+         * @param arg0 根目录
+         * @param arg1 SUMMARY_FILE实际写入的文件名
+         * @param arg2 预先分配的缓冲区，为null时新分配
+         * @param arg3 SUMMARY_FILE对应的映射区域，为null时写文件
+         */
+        public FilePrintWriter(String arg0, String arg1, ByteBuffer arg2, MappedReportSlot.Region arg3) {
             rootDir = arg0;
+            summaryFile = arg1;
+            buffer = arg2 != null ? arg2 : ByteBuffer.allocateDirect(DEFAULT_BUFFER_SIZE);
+            buffer.clear();
+            summaryRegion = arg3;
         }
 
         public void setFile(String arg0) {
-            if (!arg0.equals(fileName)) {
-                fileName = arg0;
-                if (fileWriter != null) {
+            if (!arg0.equals(fileName) || !isOpen()) {
+                if (isOpen()) {
                     close();
                 }
+                fileName = arg0;
 
+                if (summaryRegion != null && SUMMARY_FILE.equals(fileName)) {
+                    mapped = true;
+                    return;
+                }
                 try {
-                    fileWriter = new FileWriter(getFilePath(), true);
+                    outputStream = new FileOutputStream(getFilePath(), true);
+                    channel = outputStream.getChannel();
                 } catch (Exception e) {
                     e.printStackTrace();
                 }
@@ -71,51 +163,221 @@ public abstract class ICrashCollector {
         }
 
         public String getFilePath() {
-            return rootDir + File.separator + fileName;
+            return rootDir + File.separator + (SUMMARY_FILE.equals(fileName) ? summaryFile : fileName);
         }
 
         public String getRootDirectory() {
             return rootDir + File.separator;
         }
 
-        public void println(String data) {
-            if (fileWriter != null) {
-                try {
-                    fileWriter.append(data + "\r\n");
-                } catch (Exception e) {
-                    e.printStackTrace();
+        public void print(CharSequence data) {
+            if (data != null) {
+                print(data, 0, data.length());
+            }
+        }
+
+        /**
+         * 写入data中[start, end)的字符
+         */
+        public void print(CharSequence data, int start, int end) {
+            if (!isOpen() || data == null) {
+                return;
+            }
+            for (int i = start; i < end; i++) {
+                char c = data.charAt(i);
+                if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(data.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, data.charAt(++i));
+                    ensure(4);
+                    buffer.put((byte) (0xF0 | (codePoint >> 18)));
+                    buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                    buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                    buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+                } else if (c < 0x80) {
+                    ensure(1);
+                    buffer.put((byte) c);
+                } else if (c < 0x800) {
+                    ensure(2);
+                    buffer.put((byte) (0xC0 | (c >> 6)));
+                    buffer.put((byte) (0x80 | (c & 0x3F)));
+                } else {
+                    ensure(3);
+                    buffer.put((byte) (0xE0 | (c >> 12)));
+                    buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                    buffer.put((byte) (0x80 | (c & 0x3F)));
                 }
             }
         }
 
+        /**
+         * 写入十进制数字，不产生中间String
+         */
+        public void print(long value) {
+            if (!isOpen()) {
+                return;
+            }
+            if (value == Long.MIN_VALUE) {
+                print("-9223372036854775808");
+                return;
+            }
+            ensure(20);
+            if (value < 0) {
+                buffer.put((byte) '-');
+                value = -value;
+            }
+            int start = buffer.position();
+            do {
+                buffer.put((byte) ('0' + value % 10));
+                value /= 10;
+            } while (value > 0);
+            for (int i = start, j = buffer.position() - 1; i < j; i++, j--) {
+                byte tmp = buffer.get(i);
+                buffer.put(i, buffer.get(j));
+                buffer.put(j, tmp);
+            }
+        }
+
+        /**
+         * 写入原始字节
+         */
+        public void write(byte[] data, int offset, int length) {
+            if (!isOpen()) {
+                return;
+            }
+            if (length <= buffer.remaining()) {
+                buffer.put(data, offset, length);
+                return;
+            }
+            // 大块数据不经过缓冲区，直接写出
+            drain();
+            writeOut(ByteBuffer.wrap(data, offset, length));
+        }
+
+        public void println(String data) {
+            if (isOpen()) {
+                print(data);
+                ensure(2);
+                buffer.put((byte) '\r');
+                buffer.put((byte) '\n');
+            }
+        }
+
         public void println() {
             println("");
         }
 
         public void flush() {
-            if (fileWriter != null) {
+            if (isOpen()) {
+                drain();
+            }
+        }
+
+        public void close() {
+            if (mapped) {
+                drain();
+                mapped = false;
+            } else if (channel != null) {
+                drain();
                 try {
-                    fileWriter.flush();
+                    channel.close();
+                    outputStream.close();
                 } catch (Exception e) {
                     e.printStackTrace();
                 }
+                channel = null;
+                outputStream = null;
             }
+            buffer.clear();
         }
 
-        public void close() {
-            if (fileWriter != null) {
+        /**
+         * @return 已写入磁盘的字节数
+         */
+        public long getBytesWritten() {
+            return bytesWritten;
+        }
+
+        /**
+         * @return 写盘的次数
+         */
+        public long getWriteCount() {
+            return writeCount;
+        }
+
+        /**
+         * @return 写盘累计耗时(ns)
+         */
+        public long getWriteNanos() {
+            return writeNanos;
+        }
+
+        public void setDeadline(long arg0) {
+            deadline = arg0;
+        }
+
+        /**
+         * @return 收集器自身超时和全局超时中较早的时间(SystemClock.elapsedRealtime)，超过后结果不再被采用，0表示没有限制
+         */
+        public long getDeadline() {
+            return deadline;
+        }
+
+        private boolean isOpen() {
+            return mapped || channel != null;
+        }
+
+        private void ensure(int count) {
+            if (buffer.remaining() < count) {
+                drain();
+            }
+        }
+
+        private void drain() {
+            buffer.flip();
+            writeOut(buffer);
+            buffer.clear();
+        }
+
+        private void writeOut(ByteBuffer data) {
+            if (!data.hasRemaining()) {
+                return;
+            }
+            long start = System.nanoTime();
+            if (mapped) {
+                bytesWritten += summaryRegion.write(data);
+            } else {
                 try {
-                    fileWriter.flush();
-                    fileWriter.close();
-                    fileWriter = null;
+                    while (data.hasRemaining()) {
+                        bytesWritten += channel.write(data);
+                    }
                 } catch (Exception e) {
                     e.printStackTrace();
                 }
-
             }
+            writeNanos += System.nanoTime() - start;
+            writeCount++;
         }
     }
 
+    /**
+     * 异常或其cause链中是否有OutOfMemoryError
+     * @param ex
+     * @return
+     */
+    public static boolean isOutOfMemory(Object ex) {
+        if (!(ex instanceof Throwable)) {
+            return false;
+        }
+        Throwable cause = (Throwable) ex;
+        int depth = 0;
+        do {
+            if (cause instanceof OutOfMemoryError) {
+                return true;
+            }
+            cause = cause.getCause();
+        } while (cause != null && cause != ex && ++depth < MAX_CAUSE_DEPTH);
+        return false;
+    }
+
     protected String throwableFormat(Throwable ex) {
         String stacks = "";
         if (ex != null && ex.getStackTrace().length > 0) {
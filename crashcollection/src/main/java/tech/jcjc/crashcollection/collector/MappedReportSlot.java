@@ -0,0 +1,216 @@
+package tech.jcjc.crashcollection.collector;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import tech.jcjc.crashcollection.AppEnv;
+
+/**
+ * 预先创建并mmap的crash_report文件，按收集器划分成若干个固定大小的区域，崩溃时各收集器直接写入自己的区域，
+ * 不再产生write系统调用。进程在收集过程中被杀死时，已写入的内容仍然保留在文件中。
+ * <p>
+ * 收集完成后{@link #finish(boolean[])}将各区域的内容按顺序紧凑排列，并截断到实际长度。
+ */
+public class MappedReportSlot {
+    private final File mSlotFile;
+
+    private final RandomAccessFile mRandomAccessFile;
+
+    private final MappedByteBuffer mMappedBuffer;
+
+    private final Region[] mRegions;
+
+    private final byte[] mCopyBuffer = new byte[4096];
+
+    private File mFile;
+
+    /**
+     * 收集器对应的一段映射区域，写入和封存互斥，封存后的写入被丢弃
+     */
+    public static class Region {
+        private final ByteBuffer mBuffer;
+
+        private final int mOffset;
+
+        private boolean mSealed;
+
+        private boolean mTruncated;
+
+        Region(ByteBuffer buffer, int offset) {
+            mBuffer = buffer;
+            mOffset = offset;
+        }
+
+        /**
+         * 写入src中的全部剩余内容，空间不足的部分被丢弃
+         *
+         * @return 实际写入的字节数
+         */
+        public synchronized int write(ByteBuffer src) {
+            int count = src.remaining();
+            if (mSealed) {
+                src.position(src.limit());
+                return 0;
+            }
+            if (count > mBuffer.remaining()) {
+                mTruncated = true;
+                count = mBuffer.remaining();
+                int limit = src.limit();
+                src.limit(src.position() + count);
+                mBuffer.put(src);
+                src.limit(limit);
+                src.position(limit);
+            } else {
+                mBuffer.put(src);
+            }
+            return count;
+        }
+
+        public synchronized boolean isTruncated() {
+            return mTruncated;
+        }
+
+        synchronized int seal() {
+            mSealed = true;
+            return mBuffer.position();
+        }
+    }
+
+    private MappedReportSlot(File slotFile, RandomAccessFile randomAccessFile, MappedByteBuffer mappedBuffer, int[] regionSizes) {
+        mSlotFile = slotFile;
+        mFile = slotFile;
+        mRandomAccessFile = randomAccessFile;
+        mMappedBuffer = mappedBuffer;
+        mRegions = new Region[regionSizes.length];
+        int offset = 0;
+        for (int i = 0; i < regionSizes.length; i++) {
+            ByteBuffer duplicate = mappedBuffer.duplicate();
+            duplicate.position(offset);
+            duplicate.limit(offset + regionSizes[i]);
+            mRegions[i] = new Region(duplicate.slice(), offset);
+            offset += regionSizes[i];
+        }
+    }
+
+    /**
+     * 创建并映射一个预分配大小的文件
+     *
+     * @param slotFile    文件路径，已存在时覆盖，同一时刻只能由一个进程使用
+     * @param regionSizes 各区域大小
+     * @return 失败时返回null
+     */
+    public static MappedReportSlot create(File slotFile, int[] regionSizes) {
+        RandomAccessFile randomAccessFile = null;
+        try {
+            long total = 0;
+            for (int size : regionSizes) {
+                total += size;
+            }
+            File parent = slotFile.getParentFile();
+            if (parent != null && !parent.exists()) {
+                parent.mkdirs();
+            }
+            randomAccessFile = new RandomAccessFile(slotFile, "rw");
+            randomAccessFile.setLength(0);
+            randomAccessFile.setLength(total);
+            MappedByteBuffer mappedBuffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, total);
+            return new MappedReportSlot(slotFile, randomAccessFile, mappedBuffer, regionSizes);
+        } catch (Throwable e) {
+            if (AppEnv.ISAPPDEBUG) {
+                e.printStackTrace();
+            }
+            if (randomAccessFile != null) {
+                try {
+                    randomAccessFile.close();
+                } catch (Exception e1) {
+                    //ignore
+                }
+            }
+            slotFile.delete();
+            return null;
+        }
+    }
+
+    public Region getRegion(int index) {
+        return mRegions[index];
+    }
+
+    public int getRegionCount() {
+        return mRegions.length;
+    }
+
+    /**
+     * 把预分配的文件移动到崩溃目录下，映射在移动后仍然有效
+     *
+     * @param target 目标文件
+     * @return 是否成功
+     */
+    public boolean moveTo(File target) {
+        if (mSlotFile.renameTo(target)) {
+            mFile = target;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 封存所有区域，将需要保留的区域按顺序紧凑排列，截断文件到实际长度并关闭
+     *
+     * @param include 各区域是否保留，为null时全部保留
+     * @return 最终的文件长度，失败时返回-1
+     */
+    public long finish(boolean[] include) {
+        int writeOffset = 0;
+        for (int i = 0; i < mRegions.length; i++) {
+            Region region = mRegions[i];
+            int length = region.seal();
+            if (include != null && !include[i]) {
+                continue;
+            }
+            // 目标位置总是不大于源位置，顺序分块拷贝是安全的
+            int readOffset = region.mOffset;
+            int remain = length;
+            while (remain > 0) {
+                int count = Math.min(remain, mCopyBuffer.length);
+                mMappedBuffer.position(readOffset);
+                mMappedBuffer.get(mCopyBuffer, 0, count);
+                mMappedBuffer.position(writeOffset);
+                mMappedBuffer.put(mCopyBuffer, 0, count);
+                readOffset += count;
+                writeOffset += count;
+                remain -= count;
+            }
+        }
+
+        try {
+            mRandomAccessFile.setLength(writeOffset);
+            return writeOffset;
+        } catch (Exception e) {
+            if (AppEnv.ISAPPDEBUG) {
+                e.printStackTrace();
+            }
+            return -1;
+        } finally {
+            try {
+                mRandomAccessFile.close();
+            } catch (Exception e) {
+                //ignore
+            }
+        }
+    }
+
+    /**
+     * 放弃使用，删除文件
+     */
+    public void discard() {
+        try {
+            mRandomAccessFile.close();
+        } catch (Exception e) {
+            //ignore
+        }
+        mFile.delete();
+    }
+}
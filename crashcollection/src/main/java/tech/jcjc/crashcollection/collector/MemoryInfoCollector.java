@@ -4,6 +4,7 @@ package tech.jcjc.crashcollection.collector;
 import android.app.ActivityManager;
 import android.content.Context;
 import android.os.Debug;
+import android.os.SystemClock;
 import android.text.format.Formatter;
 
 
@@ -12,6 +13,7 @@ import java.io.File;
 import tech.jcjc.crashcollection.AppEnv;
 import tech.jcjc.crashcollection.interfaces.ICrashInterface;
 import tech.jcjc.crashcollection.utils.FileUtils;
+import tech.jcjc.crashcollection.utils.ProcStatusReader;
 
 public class MemoryInfoCollector extends ICrashCollector {
     private Context mContext;
@@ -34,12 +36,52 @@ public class MemoryInfoCollector extends ICrashCollector {
 
     private static final String OTHER_MEMORY = "OTHER_MEMORY";
 
+    private static final String NATIVE_HEAP = "NATIVE_HEAP";
+
+    private static final String TOTAL_PSS = "TOTAL_PSS";
+
+    private static final String MEMORY_TREND = "MEMORY_TREND";
+
+    // 提前分配的采样拷贝缓冲区，OOM时不再申请内存
+    private long[] mTrendSamples;
+
+    // 从/proc/self/status中解析的项，依次为ini中的key和status中的名称
+    private static final String[][] PROCESS_STATUS_KEYS = {
+            {"VM_RSS", "VmRSS"},
+            {"VM_HWM", "VmHWM"},
+            {"THREADS", "Threads"},
+            {"FD_SIZE", "FDSize"},
+            {"VOLUNTARY_CTXT_SWITCHES", "voluntary_ctxt_switches"},
+            {"NONVOLUNTARY_CTXT_SWITCHES", "nonvoluntary_ctxt_switches"},
+    };
+
+    private ProcStatusReader mStatusReader;
+
+    // 是否同时保留/proc/self/status的原始内容
+    private final boolean mKeepProcessStatus;
+
+    public MemoryInfoCollector() {
+        this(true);
+    }
+
+    /**
+     * @param keepProcessStatus 是否把/proc/self/status的原始内容保存为process_status.txt
+     */
+    public MemoryInfoCollector(boolean keepProcessStatus) {
+        mKeepProcessStatus = keepProcessStatus;
+    }
+
     private ActivityManager activityManager;
 
     @Override
     public void Init(Context context, ICrashInterface c) {
         mContext = context;
         activityManager = (ActivityManager) mContext.getSystemService(Context.ACTIVITY_SERVICE);
+        mStatusReader = new ProcStatusReader();
+        MemorySampler sampler = MemorySampler.getInstance();
+        if (sampler != null) {
+            mTrendSamples = new long[sampler.getCapacity() * MemorySampler.FIELD_COUNT];
+        }
     }
 
     @Override
@@ -47,16 +89,21 @@ public class MemoryInfoCollector extends ICrashCollector {
         printWriter.setFile(SUMMARY_FILE);
         printWriter.println(TAG);
         try {
-            printWriter.println(makeupKeyValue(SYSTEM_MEMORY, getMemoryUsage()));
-            printWriter.println(makeupKeyValue(DALVIK_MEMORY, getDalvikMemoryUsage()));
-            printWriter.println(makeupKeyValue(NATIVE_MEMORY, getNativeMemoryUsage()));
-            printWriter.println(makeupKeyValue(OTHER_MEMORY, getOtherMemoryUsage()));
+            // 只做一次binder调用，各项都从同一个快照中读取
+            MemorySnapshot snapshot = MemorySnapshot.capture(activityManager);
+            printWriter.println(makeupKeyValue(SYSTEM_MEMORY, getMemoryUsage(snapshot)));
+            printWriter.println(makeupKeyValue(DALVIK_MEMORY, getDalvikMemoryUsage(snapshot)));
+            printWriter.println(makeupKeyValue(NATIVE_MEMORY, getNativeMemoryUsage(snapshot)));
+            printWriter.println(makeupKeyValue(OTHER_MEMORY, getOtherMemoryUsage(snapshot)));
+            printWriter.println(makeupKeyValue(NATIVE_HEAP, getNativeHeapUsage(snapshot)));
+            printWriter.println(makeupKeyValue(TOTAL_PSS, getTotalPss(snapshot)));
+            writeMemoryTrend(printWriter);
 
 //            listBinDirectory(printWriter.getRootDirectory());
 //            listXbinDirectory(printWriter.getRootDirectory());
 
-            int pid = android.os.Process.myPid();
-            getProcessStatusMsg(pid, printWriter);
+            getProcessStatusMsg(printWriter);
+//            int pid = android.os.Process.myPid();
 //            getProcessMapMsg(pid, printWriter);
         } catch (Exception e) {
             // ignore
@@ -64,27 +111,19 @@ public class MemoryInfoCollector extends ICrashCollector {
         printWriter.println();
     }
 
-    private String getMemoryUsage() {
+    private String getMemoryUsage(MemorySnapshot snapshot) {
         try {
-            long totalMemory = Runtime.getRuntime().totalMemory();
-            long freeMemory = Runtime.getRuntime().freeMemory();
-            return Formatter.formatFileSize(mContext, totalMemory - freeMemory) + "/" + Formatter.formatFileSize(mContext, totalMemory);
+            return Formatter.formatFileSize(mContext, snapshot.getRuntimeUsedMemory()) + "/" + Formatter.formatFileSize(mContext, snapshot.getRuntimeTotalMemory());
         } catch (Exception e) {
             return throwableFormat(e);
         }
     }
 
-    private String getDalvikMemoryUsage() {
+    private String getDalvikMemoryUsage(MemorySnapshot snapshot) {
         try {
-            int pids[] = {
-                    android.os.Process.myPid()
-            };
-            Debug.MemoryInfo[] memoryInfoArray = activityManager.getProcessMemoryInfo(pids);
-            if (memoryInfoArray != null && memoryInfoArray.length > 0) {
-                Debug.MemoryInfo memoryInfo = memoryInfoArray[0];
-                return "pss:" + Formatter.formatFileSize(mContext, memoryInfo.dalvikPss * 1024) + "/" +
-                        "share:" + Formatter.formatFileSize(mContext, memoryInfo.dalvikSharedDirty * 1024) + "/" +
-                        "private" + Formatter.formatFileSize(mContext, memoryInfo.dalvikPrivateDirty * 1024);
+            Debug.MemoryInfo memoryInfo = snapshot.getMemoryInfo();
+            if (memoryInfo != null) {
+                return formatMemoryUsage(memoryInfo.dalvikPss, memoryInfo.dalvikSharedDirty, memoryInfo.dalvikPrivateDirty);
             }
         } catch (Exception e) {
             return throwableFormat(e);
@@ -92,17 +131,11 @@ public class MemoryInfoCollector extends ICrashCollector {
         return "unknown";
     }
 
-    private String getNativeMemoryUsage() {
+    private String getNativeMemoryUsage(MemorySnapshot snapshot) {
         try {
-            int pids[] = {
-                    android.os.Process.myPid()
-            };
-            Debug.MemoryInfo[] memoryInfoArray = activityManager.getProcessMemoryInfo(pids);
-            if (memoryInfoArray != null && memoryInfoArray.length > 0) {
-                Debug.MemoryInfo memoryInfo = memoryInfoArray[0];
-                return "pss:" + Formatter.formatFileSize(mContext, memoryInfo.nativePss * 1024) + "/" +
-                        "share:" + Formatter.formatFileSize(mContext, memoryInfo.nativeSharedDirty * 1024) + "/" +
-                        "private" + Formatter.formatFileSize(mContext, memoryInfo.nativePrivateDirty * 1024);
+            Debug.MemoryInfo memoryInfo = snapshot.getMemoryInfo();
+            if (memoryInfo != null) {
+                return formatMemoryUsage(memoryInfo.nativePss, memoryInfo.nativeSharedDirty, memoryInfo.nativePrivateDirty);
             }
         } catch (Exception e) {
             return throwableFormat(e);
@@ -110,17 +143,11 @@ public class MemoryInfoCollector extends ICrashCollector {
         return "unknow";
     }
 
-    private String getOtherMemoryUsage() {
+    private String getOtherMemoryUsage(MemorySnapshot snapshot) {
         try {
-            int pids[] = {
-                    android.os.Process.myPid()
-            };
-            Debug.MemoryInfo[] memoryInfoArray = activityManager.getProcessMemoryInfo(pids);
-            if (memoryInfoArray != null && memoryInfoArray.length > 0) {
-                Debug.MemoryInfo memoryInfo = memoryInfoArray[0];
-                return "pss:" + Formatter.formatFileSize(mContext, memoryInfo.otherPss * 1024) + "/" +
-                        "share:" + Formatter.formatFileSize(mContext, memoryInfo.otherSharedDirty * 1024) + "/" +
-                        "private" + Formatter.formatFileSize(mContext, memoryInfo.otherPrivateDirty * 1024);
+            Debug.MemoryInfo memoryInfo = snapshot.getMemoryInfo();
+            if (memoryInfo != null) {
+                return formatMemoryUsage(memoryInfo.otherPss, memoryInfo.otherSharedDirty, memoryInfo.otherPrivateDirty);
             }
         } catch (Exception e) {
             return throwableFormat(e);
@@ -128,23 +155,95 @@ public class MemoryInfoCollector extends ICrashCollector {
         return "unknow";
     }
 
+    private String getNativeHeapUsage(MemorySnapshot snapshot) {
+        try {
+            return Formatter.formatFileSize(mContext, snapshot.getNativeHeapAllocatedSize()) + "/" + Formatter.formatFileSize(mContext, snapshot.getNativeHeapSize());
+        } catch (Exception e) {
+            return throwableFormat(e);
+        }
+    }
+
+    /* 崩溃时的PSS，采样中不包含PSS，以该值作为走势的终点 */
+    private String getTotalPss(MemorySnapshot snapshot) {
+        try {
+            Debug.MemoryInfo memoryInfo = snapshot.getMemoryInfo();
+            if (memoryInfo != null) {
+                return Formatter.formatFileSize(mContext, memoryInfo.getTotalPss() * 1024L);
+            }
+        } catch (Exception e) {
+            return throwableFormat(e);
+        }
+        return "unknown";
+    }
+
+    /* 输出崩溃前的内存采样，每行依次为距今的毫秒数(负数)、Java堆已用、native堆已分配、VmRSS，单位KB */
+    private void writeMemoryTrend(FilePrintWriter printWriter) {
+        MemorySampler sampler = MemorySampler.getInstance();
+        if (sampler == null) {
+            return;
+        }
+        int capacity = sampler.getCapacity();
+        if (mTrendSamples == null || mTrendSamples.length < capacity * MemorySampler.FIELD_COUNT) {
+            mTrendSamples = new long[capacity * MemorySampler.FIELD_COUNT];
+        }
+        int count = sampler.copyRecent(mTrendSamples, capacity);
+        if (count == 0) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        printWriter.print(MEMORY_TREND);
+        printWriter.print("=\"\r\n\t");
+        printWriter.print("time_ms,heap_kb,native_kb,rss_kb\n\t");
+        for (int i = 0; i < count; i++) {
+            int offset = i * MemorySampler.FIELD_COUNT;
+            printWriter.print(mTrendSamples[offset + MemorySampler.FIELD_TIME] - now);
+            for (int field = MemorySampler.FIELD_HEAP_USED; field < MemorySampler.FIELD_COUNT; field++) {
+                printWriter.print(",");
+                printWriter.print(mTrendSamples[offset + field]);
+            }
+            printWriter.print("\n\t");
+        }
+        printWriter.println("\t\"");
+    }
+
+    private String formatMemoryUsage(int pss, int sharedDirty, int privateDirty) {
+        return "pss:" + Formatter.formatFileSize(mContext, pss * 1024L) + "/" +
+                "share:" + Formatter.formatFileSize(mContext, sharedDirty * 1024L) + "/" +
+                "private" + Formatter.formatFileSize(mContext, privateDirty * 1024L);
+    }
+
     /**
-     * 获取/proc/pid/status文件
+     * 读取/proc/self/status，解析出的数值写入[MEMORY]，需要时再把原始内容保存为文件
      *
-     * @param pid         进程pid
      * @param printWriter printWriter
      */
-    private void getProcessStatusMsg(int pid, FilePrintWriter printWriter) {
+    private void getProcessStatusMsg(FilePrintWriter printWriter) {
         try {
-            File processStatusFile = new File("/proc/" + pid + "/status");
-            if (processStatusFile.exists() && processStatusFile.canRead()) {
-                File logFile = new File(printWriter.getRootDirectory(), PROCESS_STATUS_LOG);
-                FileUtils.copyFile(processStatusFile, logFile);
+            if (mStatusReader == null || !mStatusReader.refresh()) {
+                return;
+            }
+            for (String[] key : PROCESS_STATUS_KEYS) {
+                long value = mStatusReader.getValue(key[1]);
+                if (value >= 0) {
+                    printWriter.print(key[0]);
+                    printWriter.print("=");
+                    printWriter.print(value);
+                    printWriter.println();
+                }
+            }
+            if (mKeepProcessStatus) {
+                printWriter.setFile(PROCESS_STATUS_LOG);
+                printWriter.write(mStatusReader.getData(), 0, mStatusReader.getLength());
+                printWriter.setFile(SUMMARY_FILE);
             }
         } catch (Exception e) {
             if (AppEnv.ISAPPDEBUG) {
                 e.printStackTrace();
             }
+        } finally {
+            if (mStatusReader != null) {
+                mStatusReader.close();
+            }
         }
     }
 
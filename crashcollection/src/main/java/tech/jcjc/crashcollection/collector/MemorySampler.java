@@ -0,0 +1,149 @@
+package tech.jcjc.crashcollection.collector;
+
+import android.os.Debug;
+import android.os.SystemClock;
+
+import tech.jcjc.crashcollection.AppEnv;
+import tech.jcjc.crashcollection.utils.ProcStatusReader;
+
+/**
+ * 后台定时采样进程内存，用于分析OOM之前的内存走势。
+ * <p>
+ * 采样结果保存在long[]环形缓冲区中，每个样本占{@link #FIELD_COUNT}项，采样过程不产生临时对象。
+ * 崩溃时由{@link MemoryInfoCollector}把最近的样本写入crash_report。
+ */
+public class MemorySampler implements Runnable {
+    // 每个样本依次为：采样时间(SystemClock.elapsedRealtime)、Java堆已用、native堆已分配、VmRSS，单位为KB。
+    // PSS需要遍历smaps，开销太大，不在采样中获取，只在崩溃时由MemoryInfoCollector获取一次
+    public static final int FIELD_TIME = 0;
+
+    public static final int FIELD_HEAP_USED = 1;
+
+    public static final int FIELD_NATIVE_HEAP = 2;
+
+    public static final int FIELD_VM_RSS = 3;
+
+    public static final int FIELD_COUNT = 4;
+
+    public static final long DEFAULT_INTERVAL = 10 * 1000;
+
+    public static final int DEFAULT_CAPACITY = 60;
+
+    private static MemorySampler sInstance;
+
+    private final long mInterval;
+
+    private final int mCapacity;
+
+    // 环形缓冲区的槽位数，比mCapacity多一个，正在被覆盖的槽位不参与读取
+    private final int mSlotCount;
+
+    private final long[] mSamples;
+
+    private final ProcStatusReader mStatusReader = new ProcStatusReader();
+
+    // 已经写完的样本总数，写入样本后再更新
+    private volatile long mCount;
+
+    private volatile boolean mStopped;
+
+    private Thread mThread;
+
+    private MemorySampler(long interval, int capacity) {
+        mInterval = interval;
+        mCapacity = capacity;
+        mSlotCount = capacity + 1;
+        mSamples = new long[mSlotCount * FIELD_COUNT];
+    }
+
+    /**
+     * 启动采样，已经启动时先停止旧的采样线程
+     *
+     * @param interval 采样间隔，毫秒
+     * @param capacity 保留的样本数
+     */
+    public static synchronized void start(long interval, int capacity) {
+        stop();
+        if (interval <= 0 || capacity <= 0) {
+            return;
+        }
+        MemorySampler sampler = new MemorySampler(interval, capacity);
+        sampler.mThread = new Thread(sampler, "CrashMemorySampler");
+        sampler.mThread.setDaemon(true);
+        sampler.mThread.setPriority(Thread.MIN_PRIORITY);
+        sampler.mThread.start();
+        sInstance = sampler;
+    }
+
+    public static synchronized void stop() {
+        if (sInstance != null) {
+            sInstance.mStopped = true;
+            sInstance.mThread.interrupt();
+            sInstance = null;
+        }
+    }
+
+    /**
+     * @return 未启动时返回null
+     */
+    public static synchronized MemorySampler getInstance() {
+        return sInstance;
+    }
+
+    @Override
+    public void run() {
+        while (!mStopped) {
+            sample();
+            try {
+                Thread.sleep(mInterval);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        mStatusReader.close();
+    }
+
+    /**
+     * 立即采样一次，只在采样线程中调用
+     */
+    private void sample() {
+        try {
+            int offset = (int) (mCount % mSlotCount) * FIELD_COUNT;
+            Runtime runtime = Runtime.getRuntime();
+            mSamples[offset + FIELD_TIME] = SystemClock.elapsedRealtime();
+            mSamples[offset + FIELD_HEAP_USED] = (runtime.totalMemory() - runtime.freeMemory()) / 1024;
+            mSamples[offset + FIELD_NATIVE_HEAP] = Debug.getNativeHeapAllocatedSize() / 1024;
+            mSamples[offset + FIELD_VM_RSS] = mStatusReader.refresh() ? mStatusReader.getValue("VmRSS") : -1;
+            mCount++;
+        } catch (Throwable e) {
+            if (AppEnv.ISAPPDEBUG) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public long getInterval() {
+        return mInterval;
+    }
+
+    /**
+     * 拷贝最近的样本，按时间从旧到新排列
+     *
+     * @param dest 目标数组，长度至少为maxCount * FIELD_COUNT
+     * @param maxCount 最多拷贝的样本数
+     * @return 实际拷贝的样本数
+     */
+    public int copyRecent(long[] dest, int maxCount) {
+        long end = mCount;
+        int count = (int) Math.min(Math.min(end, mCapacity), maxCount);
+        for (int i = 0; i < count; i++) {
+            int offset = (int) ((end - count + i) % mSlotCount) * FIELD_COUNT;
+            System.arraycopy(mSamples, offset, dest, i * FIELD_COUNT, FIELD_COUNT);
+        }
+        return count;
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+}
@@ -0,0 +1,119 @@
+package tech.jcjc.crashcollection.collector;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.os.Debug;
+import android.os.SystemClock;
+
+/**
+ * 某一时刻的进程内存快照。getProcessMemoryInfo()是一次binder调用，这里只调用一次，
+ * 各项内存信息都从同一个快照中读取。崩溃收集以外的场景也可以直接使用。
+ */
+public class MemorySnapshot {
+    private final long mTime;
+
+    private final Debug.MemoryInfo mMemoryInfo;
+
+    private final long mNativeHeapSize;
+
+    private final long mNativeHeapAllocatedSize;
+
+    private final long mNativeHeapFreeSize;
+
+    private final long mRuntimeTotalMemory;
+
+    private final long mRuntimeFreeMemory;
+
+    private final long mRuntimeMaxMemory;
+
+    private MemorySnapshot(Debug.MemoryInfo memoryInfo) {
+        mTime = SystemClock.elapsedRealtime();
+        mMemoryInfo = memoryInfo;
+        mNativeHeapSize = Debug.getNativeHeapSize();
+        mNativeHeapAllocatedSize = Debug.getNativeHeapAllocatedSize();
+        mNativeHeapFreeSize = Debug.getNativeHeapFreeSize();
+        Runtime runtime = Runtime.getRuntime();
+        mRuntimeTotalMemory = runtime.totalMemory();
+        mRuntimeFreeMemory = runtime.freeMemory();
+        mRuntimeMaxMemory = runtime.maxMemory();
+    }
+
+    /**
+     * 采集当前进程的内存快照
+     *
+     * @param context context
+     * @return 快照，获取Debug.MemoryInfo失败时{@link #getMemoryInfo()}返回null
+     */
+    public static MemorySnapshot capture(Context context) {
+        ActivityManager activityManager = null;
+        try {
+            activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return capture(activityManager);
+    }
+
+    /**
+     * 采集当前进程的内存快照
+     *
+     * @param activityManager 为null时只采集native堆和Java堆的信息
+     * @return 快照，获取Debug.MemoryInfo失败时{@link #getMemoryInfo()}返回null
+     */
+    public static MemorySnapshot capture(ActivityManager activityManager) {
+        Debug.MemoryInfo memoryInfo = null;
+        if (activityManager != null) {
+            try {
+                int pids[] = {
+                        android.os.Process.myPid()
+                };
+                Debug.MemoryInfo[] memoryInfoArray = activityManager.getProcessMemoryInfo(pids);
+                if (memoryInfoArray != null && memoryInfoArray.length > 0) {
+                    memoryInfo = memoryInfoArray[0];
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        return new MemorySnapshot(memoryInfo);
+    }
+
+    /**
+     * @return 采集时间(SystemClock.elapsedRealtime)
+     */
+    public long getTime() {
+        return mTime;
+    }
+
+    public Debug.MemoryInfo getMemoryInfo() {
+        return mMemoryInfo;
+    }
+
+    public long getNativeHeapSize() {
+        return mNativeHeapSize;
+    }
+
+    public long getNativeHeapAllocatedSize() {
+        return mNativeHeapAllocatedSize;
+    }
+
+    public long getNativeHeapFreeSize() {
+        return mNativeHeapFreeSize;
+    }
+
+    public long getRuntimeTotalMemory() {
+        return mRuntimeTotalMemory;
+    }
+
+    public long getRuntimeFreeMemory() {
+        return mRuntimeFreeMemory;
+    }
+
+    public long getRuntimeMaxMemory() {
+        return mRuntimeMaxMemory;
+    }
+
+    public long getRuntimeUsedMemory() {
+        return mRuntimeTotalMemory - mRuntimeFreeMemory;
+    }
+}
@@ -0,0 +1,139 @@
+package tech.jcjc.crashcollection.collector;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * 计算异常堆栈的CRASH_HASH。结果与逐帧拼接"类名+方法名[+行号]"再getBytes()后做MD5完全一致，
+ * 但各部分直接按UTF-8编码进复用的缓冲区后送入复用的MessageDigest，不产生中间String和byte[]。
+ * 非线程安全，多线程使用时需要各自持有实例或外部同步。
+ */
+public class StackHasher {
+    private static final char[] HEX_TABLE = "0123456789ABCDEF".toCharArray();
+
+    private final MessageDigest mMdAll;
+
+    private final MessageDigest mMdSafe;
+
+    private byte[] mScratch = new byte[256];
+
+    private final char[] mHex = new char[32];
+
+    private int mPosition;
+
+    public StackHasher() throws NoSuchAlgorithmException {
+        mMdAll = MessageDigest.getInstance("MD5");
+        mMdSafe = MessageDigest.getInstance("MD5");
+    }
+
+    /**
+     * @param cause    异常
+     * @param maxCount 统计到的栈帧数超过该值后不再处理后续的cause
+     * @return 32位大写十六进制的hash
+     */
+    public String hash(Throwable cause, int maxCount) {
+        mMdAll.reset();
+        mMdSafe.reset();
+        Throwable ex = cause;
+        int count = 0;
+        boolean bHasMobilesafe = false;
+
+        do {
+            StackTraceElement[] stacks = cause.getStackTrace();
+            for (StackTraceElement stack : stacks) {
+                // 由于Android底层函数栈的不确定性， 这里我们只计算本地包名下的栈HASH
+                String className = stack.getClassName();
+                boolean local = !StackInfoCollector.isIgnoreList(className);
+                mPosition = 0;
+                putString(className, stack.getMethodName());
+                if (local) {
+                    bHasMobilesafe = true;
+                    // 只有本地代码才保留行号
+                    putInt(stack.getLineNumber());
+                    mMdSafe.update(mScratch, 0, mPosition);
+                    mMdAll.update(mScratch, 0, mPosition);
+                } else {
+                    mMdAll.update(mScratch, 0, mPosition);
+                }
+                count++;
+            }
+
+            if (count >= maxCount) {
+                break;
+            }
+            cause = cause.getCause();
+        } while (cause != null && cause != ex);
+
+        byte[] digest = (bHasMobilesafe ? mMdSafe : mMdAll).digest();
+        for (int i = 0; i < digest.length; i++) {
+            mHex[i * 2] = HEX_TABLE[(digest[i] >> 4) & 0x0F];
+            mHex[i * 2 + 1] = HEX_TABLE[digest[i] & 0x0F];
+        }
+        return new String(mHex);
+    }
+
+    /**
+     * 按UTF-8编码first+second，两者当作一个字符串处理，first末尾与second开头的代理字符可以组成一对
+     */
+    private void putString(String first, String second) {
+        int firstLength = first.length();
+        int length = firstLength + second.length();
+        for (int i = 0; i < length; i++) {
+            char c = i < firstLength ? first.charAt(i) : second.charAt(i - firstLength);
+            char next = i + 1 >= length ? 0 : (i + 1 < firstLength ? first.charAt(i + 1) : second.charAt(i + 1 - firstLength));
+            if (Character.isHighSurrogate(c) && Character.isLowSurrogate(next)) {
+                i++;
+                int codePoint = Character.toCodePoint(c, next);
+                ensure(4);
+                mScratch[mPosition++] = (byte) (0xF0 | (codePoint >> 18));
+                mScratch[mPosition++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                mScratch[mPosition++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                mScratch[mPosition++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else if (c < 0x80) {
+                ensure(1);
+                mScratch[mPosition++] = (byte) c;
+            } else if (c < 0x800) {
+                ensure(2);
+                mScratch[mPosition++] = (byte) (0xC0 | (c >> 6));
+                mScratch[mPosition++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                // 与String.getBytes()一致，落单的代理字符编码为'?'
+                ensure(1);
+                mScratch[mPosition++] = (byte) '?';
+            } else {
+                ensure(3);
+                mScratch[mPosition++] = (byte) (0xE0 | (c >> 12));
+                mScratch[mPosition++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                mScratch[mPosition++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+    }
+
+    private void putInt(int value) {
+        ensure(11);
+        long v = value;
+        if (v < 0) {
+            mScratch[mPosition++] = (byte) '-';
+            v = -v;
+        }
+        int start = mPosition;
+        do {
+            mScratch[mPosition++] = (byte) ('0' + v % 10);
+            v /= 10;
+        } while (v > 0);
+        for (int i = start, j = mPosition - 1; i < j; i++, j--) {
+            byte tmp = mScratch[i];
+            mScratch[i] = mScratch[j];
+            mScratch[j] = tmp;
+        }
+    }
+
+    private void ensure(int count) {
+        if (mPosition + count > mScratch.length) {
+            // 只有名字特别长时才会扩容
+            byte[] scratch = new byte[Math.max(mScratch.length * 2, mPosition + count)];
+            System.arraycopy(mScratch, 0, scratch, 0, mPosition);
+            mScratch = scratch;
+        }
+    }
+}
@@ -10,7 +10,6 @@ import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.io.Writer;
-import java.security.MessageDigest;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -21,8 +20,10 @@ import java.util.List;
 
 import tech.jcjc.crashcollection.AppEnv;
 import tech.jcjc.crashcollection.interfaces.ICrashInterface;
-import tech.jcjc.crashcollection.utils.ByteConvertor;
 import tech.jcjc.crashcollection.utils.FileUtils;
+import tech.jcjc.crashcollection.utils.PrefixMatcher;
+import tech.jcjc.crashcollection.utils.ProcTaskWalker;
+import tech.jcjc.crashcollection.utils.ReservedBuffer;
 import tech.jcjc.crashcollection.utils.SecurityUtil;
 
 public class StackInfoCollector extends ICrashCollector {
@@ -34,8 +35,26 @@ public class StackInfoCollector extends ICrashCollector {
             "android.", "com.android.", "java.", "com.java.", "dalvik.", "libcore.", "de.robv.", "org.apache", "com.lbe", "com.qihoo360.mobilesafe.mt.SafeAsyncTask"
     };
 
+    // PKG_IGNORE_LIST与产品配置的前缀编译后的匹配器
+    private static volatile PrefixMatcher sIgnoreMatcher = new PrefixMatcher(PKG_IGNORE_LIST);
+
     private static final int MAX_STACK_TRACE_LIMIT = 50;
 
+    // OOM时用于输出堆栈的预分配缓冲区大小
+    private static final int OOM_BUFFER_SIZE = 64 * 1024;
+
+    private ReservedBuffer mOomBuffer;
+
+    // ps.log的缓冲区大小，线程过多时超出的部分被丢弃
+    private static final int PS_BUFFER_SIZE = 64 * 1024;
+
+    private ReservedBuffer mPsBuffer;
+
+    private ProcTaskWalker mTaskWalker;
+
+    // 复用的CRASH_HASH计算器，Init时创建，避免崩溃时再去获取MessageDigest
+    private static StackHasher sStackHasher;
+
     private final String mBuildPropFilePath = "/system/build.prop";
 
     private final int mBuildPropToFileFinish = 0;
@@ -51,22 +70,63 @@ public class StackInfoCollector extends ICrashCollector {
     @Override
     public void Init(Context context, ICrashInterface c) {
         mContext = context;
+        if (c instanceof ICrashInterface.IIgnorePackageProvider) {
+            try {
+                String[] prefixes = ((ICrashInterface.IIgnorePackageProvider) c).getIgnorePackagePrefixes();
+                if (prefixes != null && prefixes.length > 0) {
+                    sIgnoreMatcher = new PrefixMatcher(PKG_IGNORE_LIST, prefixes);
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        mOomBuffer = new ReservedBuffer(OOM_BUFFER_SIZE);
+        mPsBuffer = new ReservedBuffer(PS_BUFFER_SIZE);
+        mTaskWalker = new ProcTaskWalker();
+        synchronized (StackInfoCollector.class) {
+            if (sStackHasher == null) {
+                try {
+                    sStackHasher = new StackHasher();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean isCritical() {
+        return true;
+    }
+
+    @Override
+    public int getSummaryCapacity() {
+        return 256 * 1024;
     }
 
     @Override
     public void runCollector(int type, Thread thread, Object ex, FilePrintWriter printWriter) {
         printWriter.setFile(SUMMARY_FILE);
+        if (mOomBuffer != null && isOutOfMemory(ex)) {
+            // OOM时不拼接字符串，直接写入预分配的缓冲区，也不再fork ps进程
+            runOomCollector(thread, (Throwable) ex, printWriter);
+            return;
+        }
         printWriter.println(TAG);
         try {
             printWriter.println(makeupKeyValue("THREAD_INFO", getCrashThreadInfo(thread)));
             printWriter.println(makeupKeyValue("LAST_CALL", getCrashLastCallStackTrace(ex)));
-            String stackTrace = getCauseStackTrace(ex);
-            printWriter.println(makeupKeyValue("STACK_TRACE", stackTrace));
+            if (ex instanceof Throwable) {
+                // 逐帧直接写入文件，不再拼接完整的堆栈字符串
+                StackTraceFormatter.writeKeyValue(printWriter, "STACK_TRACE", (Throwable) ex);
+            } else {
+                printWriter.println(makeupKeyValue("STACK_TRACE", getCauseStackTrace(ex)));
+            }
 
             //由于CrashHandler经常没有执行CustomInfoCollector就结束了，故将这些信息提前收集
 //            getBuildPropMsg(printWriter);
 //            getFileHierarchy(mContext.getFilesDir().getParent(), printWriter.getRootDirectory(), "fileHierarchy.log");
-            getProcessToFile(printWriter.getRootDirectory(), "ps.log");
+            getProcessToFile(printWriter, "ps.log");
         } catch (Exception e) {
             e.printStackTrace();
             printWriter.println(makeupKeyValue("STACK_TRACE", getCauseStackTrace(e)));
@@ -74,6 +134,73 @@ public class StackInfoCollector extends ICrashCollector {
         printWriter.println();
     }
 
+    private void runOomCollector(Thread thread, Throwable ex, FilePrintWriter printWriter) {
+        ReservedBuffer buffer = mOomBuffer.reset();
+        buffer.append(TAG).newLine();
+        if (thread != null) {
+            buffer.append("THREAD_INFO=\"id:").append(thread.getId()).append(" name:").append(thread.getName())
+                    .append(" priority:").append(thread.getPriority()).append(" state:").append(thread.getState().name())
+                    .append('"').newLine();
+        }
+
+        buffer.append("LAST_CALL=");
+        StackTraceElement lastCall = null;
+        Throwable cause = ex;
+        do {
+            for (StackTraceElement stack : cause.getStackTrace()) {
+                if (!isIgnoreList(stack.getClassName())) {
+                    lastCall = stack;
+                    break;
+                }
+            }
+            cause = cause.getCause();
+        } while (lastCall == null && cause != null && cause != ex);
+        if (lastCall != null) {
+            appendStackTraceElement(buffer, lastCall);
+        } else {
+            buffer.append(ex.getClass().getName());
+        }
+        buffer.newLine();
+
+        buffer.append("STACK_TRACE=\"").newLine().append('\t');
+        cause = ex;
+        int count = 0;
+        do {
+            if (cause != ex) {
+                buffer.append("Caused by: ");
+            }
+            buffer.append(cause.getClass().getName());
+            String message = cause.getMessage();
+            if (message != null) {
+                buffer.append(": ").append(message);
+            }
+            for (StackTraceElement stack : cause.getStackTrace()) {
+                buffer.append("\n\t\tat ");
+                appendStackTraceElement(buffer, stack);
+            }
+            buffer.append("\n\t");
+            cause = cause.getCause();
+        } while (cause != null && cause != ex && ++count < MAX_STACK_TRACE_LIMIT);
+        buffer.append("\t\"").newLine().newLine();
+
+        printWriter.write(buffer.getData(), 0, buffer.size());
+    }
+
+    private static void appendStackTraceElement(ReservedBuffer buffer, StackTraceElement stack) {
+        buffer.append(stack.getClassName()).append('.').append(stack.getMethodName()).append('(');
+        if (stack.isNativeMethod()) {
+            buffer.append("Native Method");
+        } else if (stack.getFileName() == null) {
+            buffer.append("Unknown Source");
+        } else {
+            buffer.append(stack.getFileName());
+            if (stack.getLineNumber() >= 0) {
+                buffer.append(':').append(stack.getLineNumber());
+            }
+        }
+        buffer.append(')');
+    }
+
     public static String getCrashLastCallStackTrace(Object ex) {
         try {
             if (ex != null && ex instanceof Throwable) {
@@ -175,36 +302,12 @@ public class StackInfoCollector extends ICrashCollector {
                 Throwable cause = (Throwable) ex;
                 if (cause != null && cause.getStackTrace() != null) {
                     try {
-                        int count = 0;
-                        MessageDigest mdAll = MessageDigest.getInstance("MD5");
-                        MessageDigest mdSafe = MessageDigest.getInstance("MD5");
-                        boolean bHasMobilesafe = false;
-
-                        do {
-                            StackTraceElement[] stacks = cause.getStackTrace();
-                            if (stacks.length > 0) {
-                                for (StackTraceElement stack : stacks) {
-                                    // 由于Android底层函数栈的不确定性， 这里我们只计算本地包名下的栈HASH
-                                    String hashString = stack.getClassName() + stack.getMethodName();
-                                    if (!isIgnoreList(stack.getClassName())) {
-                                        bHasMobilesafe = true;
-                                        // 只有本地代码才保留行号
-                                        hashString += stack.getLineNumber();
-                                        mdSafe.update(hashString.getBytes());
-                                    }
-                                    count++;
-                                    mdAll.update(hashString.getBytes());
-                                }
+                        synchronized (StackInfoCollector.class) {
+                            if (sStackHasher == null) {
+                                sStackHasher = new StackHasher();
                             }
-
-                            if (count >= MAX_STACK_TRACE_LIMIT) {
-                                break;
-                            }
-                            cause = cause.getCause();
-                        } while (cause != null && cause != ex);
-
-                        MessageDigest mdDigest = bHasMobilesafe ? mdSafe : mdAll;
-                        return ByteConvertor.bytesToHexString(mdDigest.digest()).toUpperCase();
+                            return sStackHasher.hash(cause, MAX_STACK_TRACE_LIMIT);
+                        }
                     } catch (Exception e) {
                         e.printStackTrace();
                     }
@@ -219,13 +322,8 @@ public class StackInfoCollector extends ICrashCollector {
         return "00000000000000000000000000000000";
     }
 
-    private static boolean isIgnoreList(String className) {
-        for (String ignore : PKG_IGNORE_LIST) {
-            if (className.startsWith(ignore)) {
-                return true;
-            }
-        }
-        return false;
+    static boolean isIgnoreList(String className) {
+        return sIgnoreMatcher.matches(className);
     }
 
 
@@ -268,7 +366,26 @@ public class StackInfoCollector extends ICrashCollector {
         }
     }
 
-    private void getProcessToFile(String rootDirectory, final String fileName) {
+    /* 优先遍历/proc/self/task输出本进程的线程，失败时再fork ps进程，两种方式的耗时都记录下来用于对比 */
+    private void getProcessToFile(FilePrintWriter summaryWriter, final String fileName) {
+        long start = System.nanoTime();
+        String source = "proc";
+        int count = -1;
+        if (mTaskWalker != null) {
+            count = mTaskWalker.dump(mPsBuffer.reset());
+            if (count >= 0) {
+                mPsBuffer.writeTo(new File(summaryWriter.getRootDirectory(), fileName), false);
+            }
+        }
+        if (count < 0) {
+            source = "exec";
+            getProcessToFileByExec(summaryWriter.getRootDirectory(), fileName);
+        }
+        summaryWriter.println("PS_SOURCE=" + source);
+        summaryWriter.println("PS_TIME_US=" + (System.nanoTime() - start) / 1000);
+    }
+
+    private void getProcessToFileByExec(String rootDirectory, final String fileName) {
         FilePrintWriter printWriter = null;
         try {
             printWriter = new FilePrintWriter(rootDirectory);
@@ -0,0 +1,141 @@
+package tech.jcjc.crashcollection.collector;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * 遍历StackTraceElement[]，把异常堆栈直接写入{@link ICrashCollector.FilePrintWriter}，格式与printStackTrace一致，
+ * 包含Caused by、Suppressed和循环引用检测，同时按ini的要求在每个换行后加上缩进，不再生成完整的堆栈字符串。
+ */
+public class StackTraceFormatter {
+    private static final String CAUSE_CAPTION = "Caused by: ";
+
+    private static final String SUPPRESSED_CAPTION = "Suppressed: ";
+
+    // python解析*.ini文件时，value如果跨行，要求除第一行以外都要有缩进
+    private static final String NEW_LINE = "\n\t";
+
+    private final ICrashCollector.FilePrintWriter mWriter;
+
+    private final Set<Throwable> mDejaVu = Collections.newSetFromMap(new IdentityHashMap<Throwable, Boolean>());
+
+    private StackTraceFormatter(ICrashCollector.FilePrintWriter writer) {
+        mWriter = writer;
+    }
+
+    /**
+     * 以key="..."的形式写入异常堆栈，与makeupKeyValue(key, 堆栈字符串)的输出格式一致
+     *
+     * @param writer 写入器
+     * @param key    键名
+     * @param ex     异常
+     */
+    public static void writeKeyValue(ICrashCollector.FilePrintWriter writer, String key, Throwable ex) {
+        writer.print(key);
+        writer.print("=\"\r\n\t");
+        new StackTraceFormatter(writer).printStackTrace(ex);
+        writer.println("\t\"");
+    }
+
+    private void printStackTrace(Throwable ex) {
+        mDejaVu.add(ex);
+        printHeader(ex);
+        StackTraceElement[] trace = ex.getStackTrace();
+        for (StackTraceElement element : trace) {
+            printFrame("", element);
+        }
+        for (Throwable suppressed : ex.getSuppressed()) {
+            printEnclosedStackTrace(suppressed, trace, SUPPRESSED_CAPTION, "\t");
+        }
+        Throwable cause = ex.getCause();
+        if (cause != null) {
+            printEnclosedStackTrace(cause, trace, CAUSE_CAPTION, "");
+        }
+    }
+
+    private void printEnclosedStackTrace(Throwable ex, StackTraceElement[] enclosingTrace, String caption, String prefix) {
+        if (mDejaVu.contains(ex)) {
+            mWriter.print(prefix);
+            mWriter.print(caption);
+            mWriter.print("[CIRCULAR REFERENCE: ");
+            mWriter.print(ex.getClass().getName());
+            mWriter.print("]");
+            mWriter.print(NEW_LINE);
+            return;
+        }
+        mDejaVu.add(ex);
+
+        // 与外层堆栈相同的尾部栈帧省略，只输出"... n more"
+        StackTraceElement[] trace = ex.getStackTrace();
+        int m = trace.length - 1;
+        int n = enclosingTrace.length - 1;
+        while (m >= 0 && n >= 0 && trace[m].equals(enclosingTrace[n])) {
+            m--;
+            n--;
+        }
+        int framesInCommon = trace.length - 1 - m;
+
+        mWriter.print(prefix);
+        mWriter.print(caption);
+        printHeader(ex);
+        for (int i = 0; i <= m; i++) {
+            printFrame(prefix, trace[i]);
+        }
+        if (framesInCommon != 0) {
+            mWriter.print(prefix);
+            mWriter.print("\t... ");
+            mWriter.print(framesInCommon);
+            mWriter.print(" more");
+            mWriter.print(NEW_LINE);
+        }
+
+        for (Throwable suppressed : ex.getSuppressed()) {
+            printEnclosedStackTrace(suppressed, trace, SUPPRESSED_CAPTION, prefix + "\t");
+        }
+        Throwable cause = ex.getCause();
+        if (cause != null) {
+            printEnclosedStackTrace(cause, trace, CAUSE_CAPTION, prefix);
+        }
+    }
+
+    private void printHeader(Throwable ex) {
+        mWriter.print(ex.getClass().getName());
+        String message = ex.getLocalizedMessage();
+        if (message != null) {
+            mWriter.print(": ");
+            // 异常信息本身可能跨行，同样需要缩进
+            int start = 0;
+            int index;
+            while ((index = message.indexOf('\n', start)) >= 0) {
+                mWriter.print(message, start, index);
+                mWriter.print(NEW_LINE);
+                start = index + 1;
+            }
+            mWriter.print(message, start, message.length());
+        }
+        mWriter.print(NEW_LINE);
+    }
+
+    private void printFrame(String prefix, StackTraceElement element) {
+        mWriter.print(prefix);
+        mWriter.print("\tat ");
+        mWriter.print(element.getClassName());
+        mWriter.print(".");
+        mWriter.print(element.getMethodName());
+        if (element.isNativeMethod()) {
+            mWriter.print("(Native Method)");
+        } else if (element.getFileName() == null) {
+            mWriter.print("(Unknown Source)");
+        } else {
+            mWriter.print("(");
+            mWriter.print(element.getFileName());
+            if (element.getLineNumber() >= 0) {
+                mWriter.print(":");
+                mWriter.print(element.getLineNumber());
+            }
+            mWriter.print(")");
+        }
+        mWriter.print(NEW_LINE);
+    }
+}
@@ -0,0 +1,187 @@
+package tech.jcjc.crashcollection.collector;
+
+import android.content.Context;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import tech.jcjc.crashcollection.interfaces.ICrashInterface;
+
+/**
+ * 收集所有线程的堆栈，写入threads.txt。堆栈完全相同的线程合并为一项，线程池中大量空闲线程只输出一次。
+ * 每个堆栈最多输出{@link #MAX_FRAMES}帧，文件总大小超过{@link #MAX_BYTES}后不再输出。
+ */
+public class ThreadsInfoCollector extends ICrashCollector {
+    private static final String TAG = "[THREADS]";
+
+    private static final String THREADS_FILE = "threads.txt";
+
+    // 每个堆栈最多输出的帧数
+    private static final int MAX_FRAMES = 64;
+
+    // threads.txt的大小上限(按字符数估算)
+    private static final int MAX_BYTES = 512 * 1024;
+
+    // 同一堆栈最多列出的线程数
+    private static final int MAX_THREADS_PER_STACK = 20;
+
+    private long mBytes;
+
+    private boolean mTruncated;
+
+    /* 一组堆栈完全相同的线程，hash只对前MAX_FRAMES帧计算，相同时再逐帧比较 */
+    private static class StackGroup {
+        final StackTraceElement[] stack;
+
+        final int hash;
+
+        final List<Thread> threads = new ArrayList<Thread>();
+
+        StackGroup(StackTraceElement[] stack) {
+            this.stack = stack;
+            int h = 1;
+            int count = Math.min(stack.length, MAX_FRAMES);
+            for (int i = 0; i < count; i++) {
+                h = 31 * h + stack[i].hashCode();
+            }
+            hash = 31 * h + stack.length;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof StackGroup && ((StackGroup) o).hash == hash && Arrays.equals(((StackGroup) o).stack, stack);
+        }
+    }
+
+    @Override
+    public void Init(Context context, ICrashInterface c) {
+    }
+
+    @Override
+    public void runCollector(int type, Thread thread, Object ex, FilePrintWriter printWriter) {
+        printWriter.setFile(SUMMARY_FILE);
+        printWriter.println(TAG);
+        if (isOutOfMemory(ex)) {
+            // getAllStackTraces需要为每个线程分配数组，OOM时不收集
+            printWriter.println("THREADS_FILE=skipped");
+            printWriter.println();
+            return;
+        }
+
+        int threadCount = 0;
+        int groupCount = 0;
+        try {
+            Map<Thread, StackTraceElement[]> traces = Thread.getAllStackTraces();
+            threadCount = traces.size();
+            List<StackGroup> groups = groupByStack(traces);
+            groupCount = groups.size();
+
+            printWriter.setFile(THREADS_FILE);
+            mBytes = 0;
+            mTruncated = false;
+            // 崩溃线程所在的组排在最前面
+            for (StackGroup group : groups) {
+                if (group.threads.contains(thread)) {
+                    writeGroup(group, thread, printWriter);
+                    break;
+                }
+            }
+            for (StackGroup group : groups) {
+                if (mTruncated) {
+                    break;
+                }
+                if (!group.threads.contains(thread)) {
+                    writeGroup(group, null, printWriter);
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+
+        printWriter.setFile(SUMMARY_FILE);
+        printWriter.println("THREAD_COUNT=" + threadCount);
+        printWriter.println("UNIQUE_STACKS=" + groupCount);
+        printWriter.println("THREADS_FILE=" + THREADS_FILE);
+        printWriter.println("THREADS_TRUNCATED=" + mTruncated);
+        printWriter.println();
+    }
+
+    private static List<StackGroup> groupByStack(Map<Thread, StackTraceElement[]> traces) {
+        Map<StackGroup, StackGroup> groupMap = new HashMap<StackGroup, StackGroup>();
+        for (Map.Entry<Thread, StackTraceElement[]> entry : traces.entrySet()) {
+            StackTraceElement[] stack = entry.getValue() != null ? entry.getValue() : new StackTraceElement[0];
+            StackGroup key = new StackGroup(stack);
+            StackGroup group = groupMap.get(key);
+            if (group == null) {
+                group = key;
+                groupMap.put(key, group);
+            }
+            group.threads.add(entry.getKey());
+        }
+        List<StackGroup> groups = new ArrayList<StackGroup>(groupMap.values());
+        // 线程数多的排在前面
+        Collections.sort(groups, new Comparator<StackGroup>() {
+            @Override
+            public int compare(StackGroup lhs, StackGroup rhs) {
+                return rhs.threads.size() - lhs.threads.size();
+            }
+        });
+        return groups;
+    }
+
+    private void writeGroup(StackGroup group, Thread crashThread, FilePrintWriter printWriter) {
+        int threadCount = group.threads.size();
+        if (crashThread != null) {
+            writeLine(printWriter, "Crash thread:");
+            writeLine(printWriter, describe(crashThread));
+        }
+        int listed = 0;
+        for (Thread t : group.threads) {
+            if (t == crashThread) {
+                continue;
+            }
+            if (listed >= MAX_THREADS_PER_STACK) {
+                writeLine(printWriter, "... and " + (threadCount - listed - (crashThread != null ? 1 : 0)) + " more threads");
+                break;
+            }
+            writeLine(printWriter, describe(t));
+            listed++;
+        }
+
+        int frames = Math.min(group.stack.length, MAX_FRAMES);
+        for (int i = 0; i < frames && !mTruncated; i++) {
+            writeLine(printWriter, "\tat " + group.stack[i]);
+        }
+        if (group.stack.length > frames) {
+            writeLine(printWriter, "\t... " + (group.stack.length - frames) + " more");
+        }
+        writeLine(printWriter, "");
+    }
+
+    private static String describe(Thread t) {
+        return "\"" + t.getName() + "\" id=" + t.getId() + " prio=" + t.getPriority() + " state=" + t.getState() + (t.isDaemon() ? " daemon" : "");
+    }
+
+    private void writeLine(FilePrintWriter printWriter, String line) {
+        if (mTruncated) {
+            return;
+        }
+        if (mBytes + line.length() + 2 > MAX_BYTES) {
+            mTruncated = true;
+            printWriter.println("... truncated");
+            return;
+        }
+        mBytes += line.length() + 2;
+        printWriter.println(line);
+    }
+}
@@ -13,10 +13,21 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import tech.jcjc.crashcollection.AppEnv;
+import tech.jcjc.crashcollection.CrashReportImpl;
+import tech.jcjc.crashcollection.collector.BaseInfoCollector;
 import tech.jcjc.crashcollection.collector.ICrashCollector;
 import tech.jcjc.crashcollection.interfaces.ICrashInterface;
 import tech.jcjc.crashcollection.utils.FileUtils;
@@ -35,6 +46,8 @@ public class CrashCheckUpload {
 
     private static String mCrashRootPath = "";
 
+    private static final Object sCrashRootPathLock = new Object();
+
     private static final String BREAKPAD_DUMP_SUFFIX = ".dmp";
 
     private static final String BREAKPAD_DUMP_INFO_SUFFIX = ".dmp.info";
@@ -45,8 +58,40 @@ public class CrashCheckUpload {
 
     private static final long MAX_CRASH_DIR_EXIST_TIME = 30 * 24 * 3600 * 1000L;
 
+    private static final String RECORD_STORE_LOCK = "crash_store";
+
+    // 默认同时进行的上传个数
+    public static final int DEFAULT_UPLOAD_CONCURRENCY = 2;
+
+    private static final long UPLOAD_WORKER_KEEP_ALIVE = 30 * 1000L;
+
     private final ICrashInterface mCrashInterface;
 
+    private CrashRecordStore mRecordStore;
+
+    private volatile boolean mRecordStoreEnabled;
+
+    // 同一进程内ProcessLock不能重复加锁，Java和Native的上传并行时先用它串行化对记录存储的访问
+    private final Object mRecordStoreLock = new Object();
+
+    private int mUploadConcurrency = DEFAULT_UPLOAD_CONCURRENCY;
+
+    // 一次上传过程中使用的线程池，压缩加密和网络请求在各个工作线程中重叠进行
+    private volatile ExecutorService mUploadExecutor;
+
+    // 上传失败的重试队列，放在崩溃目录的上一级
+    private static final String RETRY_QUEUE_FILE = "crash_retry";
+
+    private volatile boolean mRetryEnabled = true;
+
+    // 一次上传过程中使用的重试队列，未开启重试时为null
+    private volatile UploadRetryQueue mRetryQueue;
+
+    private UploadRetryScheduler mRetryScheduler;
+
+    // 后台重试时使用最近一次上传的附加参数
+    private volatile Map<String, String> mRetryParams;
+
     public CrashCheckUpload(Context context, ICrashInterface c) {
         mContext = context;
         mCrashInterface = c;
@@ -68,10 +113,28 @@ public class CrashCheckUpload {
 
         @Override
         public void run() {
-            int[] javaCount = postJavaCrashFile(mParams);
-            int[] nativeCount = postNativeCrashFile(mParams);
+            // 三类日志同时处理，各自的上传任务共用同一个线程池
+            final int[][] counts = new int[3][];
+            Thread nativeThread = new Thread("CrashUploadNative") {
+                @Override
+                public void run() {
+                    counts[1] = postNativeCrashFile(mParams);
+                }
+            };
             //增加对Breakpad的进行处理
-            int[] breakpadCount = postBreakpadCaughtCrashFile(mParams);
+            Thread breakpadThread = new Thread("CrashUploadBreakpad") {
+                @Override
+                public void run() {
+                    counts[2] = postBreakpadCaughtCrashFile(mParams);
+                }
+            };
+            nativeThread.start();
+            breakpadThread.start();
+            int[] javaCount = postJavaCrashFile(mParams);
+            joinQuietly(nativeThread);
+            joinQuietly(breakpadThread);
+            int[] nativeCount = counts[1] != null ? counts[1] : new int[]{0, 0};
+            int[] breakpadCount = counts[2] != null ? counts[2] : new int[]{0, 0};
             mUploadResult = javaCount[0] + nativeCount[0] + breakpadCount[0];
 
             if (mUploadResult == 0 && javaCount[1] == 0 && nativeCount[1] == 0 && breakpadCount[1] == 0) {
@@ -82,6 +145,159 @@ public class CrashCheckUpload {
     }
 
 
+    /**
+     * 是否开启失败重试。开启后上传失败的报告按指数退避推迟，退避期间的自动上传跳过该报告，
+     * 并在后台线程中到时间后自动重新上传
+     *
+     * @param enabled 是否开启
+     */
+    public void setUploadRetryEnabled(boolean enabled) {
+        mRetryEnabled = enabled;
+        if (!enabled) {
+            synchronized (this) {
+                if (mRetryScheduler != null) {
+                    mRetryScheduler.shutdown();
+                    mRetryScheduler = null;
+                }
+            }
+        }
+    }
+
+    private UploadRetryQueue beginRetryPass() {
+        if (!mRetryEnabled) {
+            return null;
+        }
+        UploadRetryQueue queue = new UploadRetryQueue(new File(new File(getJavaCrashFolder()).getParentFile(), RETRY_QUEUE_FILE));
+        queue.load();
+        return queue;
+    }
+
+    /* 保存重试队列，按最早的重试时间安排后台上传 */
+    private void endRetryPass(UploadRetryQueue queue, Map<String, String> exts) {
+        if (queue == null) {
+            return;
+        }
+        queue.save();
+        long next = queue.getNextRetryTime();
+        synchronized (this) {
+            if (!mRetryEnabled) {
+                return;
+            }
+            if (next < 0) {
+                if (mRetryScheduler != null) {
+                    mRetryScheduler.cancel();
+                }
+                return;
+            }
+            if (exts != null) {
+                mRetryParams = exts;
+            }
+            if (mRetryScheduler == null) {
+                mRetryScheduler = new UploadRetryScheduler(new Runnable() {
+                    @Override
+                    public void run() {
+                        checkUploadCrashFile(mRetryParams, false);
+                    }
+                });
+            }
+            mRetryScheduler.schedule(next);
+        }
+    }
+
+    private static void joinQuietly(Thread thread) {
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 设置同时进行的上传个数
+     *
+     * @param concurrency 大于0
+     */
+    public void setUploadConcurrency(int concurrency) {
+        mUploadConcurrency = Math.max(concurrency, 1);
+    }
+
+    private ExecutorService createUploadExecutor() {
+        final AtomicInteger index = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(mUploadConcurrency, mUploadConcurrency, UPLOAD_WORKER_KEEP_ALIVE,
+                TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "CrashUploadWorker-" + index.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * 在上传线程池中执行，没有线程池时直接在当前线程执行
+     */
+    private Future<Integer> submitUpload(Callable<Integer> task) {
+        ExecutorService executor = mUploadExecutor;
+        if (executor != null) {
+            try {
+                return executor.submit(task);
+            } catch (Exception e) {
+                if (AppEnv.ISAPPDEBUG) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        FutureTask<Integer> future = new FutureTask<Integer>(task);
+        future.run();
+        return future;
+    }
+
+    private Future<Integer> submitUpload(final File crashRootDir, final Map<String, String> exts) {
+        return submitUpload(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return reportCrashDataForm(crashRootDir, exts);
+            }
+        });
+    }
+
+    private Future<Integer> submitUpload(final CrashRecordStore store, final CrashRecordStore.Entry entry, final Map<String, String> exts) {
+        return submitUpload(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                UploadAction upload = new UploadAction(mContext, mCrashInterface);
+                int result = upload.StartZipAndUploadByRecord(store, entry, exts);
+                if (AppEnv.ISAPPDEBUG) {
+                    Log.i(TAG, "upload crash record:" + entry.timestamp + " result:" + result);
+                }
+                return result;
+            }
+        });
+    }
+
+    private Future<Integer> submitUpload(final ArrayList<File> crashFileList, final Map<String, String> exts) {
+        return submitUpload(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return reportCrashDataForm(crashFileList, exts);
+            }
+        });
+    }
+
+    private static int getUploadResult(Future<Integer> future) {
+        try {
+            return future.get();
+        } catch (Exception e) {
+            if (AppEnv.ISAPPDEBUG) {
+                e.printStackTrace();
+            }
+            return -99;
+        }
+    }
+
     /**
      * 传递一个文件列表，来进行压缩上传
      *
@@ -119,6 +335,198 @@ public class CrashCheckUpload {
         return 0;
     }
 
+    /**
+     * 崩溃记录存储，放在崩溃目录的上一级
+     */
+    public CrashRecordStore getRecordStore() {
+        synchronized (mRecordStoreLock) {
+            if (mRecordStore == null) {
+                mRecordStore = new CrashRecordStore(new File(getJavaCrashFolder()).getParentFile());
+            }
+            return mRecordStore;
+        }
+    }
+
+    /**
+     * 收集完成后把崩溃目录登记到所在根目录的索引中
+     *
+     * @param crashDir           崩溃目录
+     * @param type               崩溃类型
+     * @param rootModifiedBefore 创建崩溃目录之前根目录的修改时间
+     */
+    public void addCrashFolder(File crashDir, int type, long rootModifiedBefore) {
+        try {
+            new CrashFolderIndex(crashDir.getParentFile()).add(crashDir, type, rootModifiedBefore);
+        } catch (Exception e) {
+            if (AppEnv.ISAPPDEBUG) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * 是否把本次上传后仍然留下的崩溃目录(上传失败或还在退避期间)打包进记录存储，之后从存储中顺序读取上传。
+     * 打包在上传过程中进行，不占用崩溃时的时间。第一次就上传成功的报告不经过存储；留下的目录只打包一次，
+     * 之后每次重试直接读取记录在seg中的数据，不再写入闪存
+     *
+     * @param enabled 是否开启
+     */
+    public void setRecordStoreEnabled(boolean enabled) {
+        mRecordStoreEnabled = enabled;
+    }
+
+    /**
+     * 把崩溃目录打包追加到记录存储中，成功后删除目录，重试记录随之转移到存储中的记录上
+     *
+     * @param rootDir 根目录
+     * @param entries 待打包的目录
+     * @param type    索引中没有记录类型时使用的崩溃类型
+     * @return 没有打包成功的目录，仍按目录上传
+     */
+    private List<CrashFolderIndex.Entry> archiveCrashFolders(File rootDir, List<CrashFolderIndex.Entry> entries, int type) {
+        UploadRetryQueue retryQueue = mRetryQueue;
+        List<CrashFolderIndex.Entry> remain = new ArrayList<CrashFolderIndex.Entry>();
+        synchronized (mRecordStoreLock) {
+            ProcessLock pl = new ProcessLock(mContext, RECORD_STORE_LOCK, true);
+            try {
+                if (!pl.tryLock(1, 0, false)) {
+                    return entries;
+                }
+                CrashRecordStore store = getRecordStore();
+                for (CrashFolderIndex.Entry entry : entries) {
+                    File crashDir = new File(rootDir, entry.name);
+                    try {
+                        String crashHash = readCrashHash(crashDir);
+                        long timestamp = Long.parseLong(entry.name);
+                        int recordType = entry.type != CrashFolderIndex.TYPE_UNKNOWN ? entry.type : type;
+                        if (store.append(crashDir, crashHash, timestamp, recordType)) {
+                            FileUtils.deleteDir(crashDir.getAbsolutePath());
+                            if (retryQueue != null) {
+                                retryQueue.move(crashDir, getRecordRetryKey(store, timestamp, crashHash));
+                            }
+                            continue;
+                        }
+                    } catch (Exception e) {
+                        if (AppEnv.ISAPPDEBUG) {
+                            e.printStackTrace();
+                        }
+                    }
+                    remain.add(entry);
+                }
+            } catch (Exception e) {
+                if (AppEnv.ISAPPDEBUG) {
+                    e.printStackTrace();
+                }
+            } finally {
+                pl.freeLock();
+            }
+        }
+        return remain;
+    }
+
+    private static String readCrashHash(File crashDir) {
+        File[] files = crashDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(BaseInfoCollector.CRASH_HASH_TMP_FILE_SUF)) {
+                    return file.getName().substring(0, file.getName().length() - BaseInfoCollector.CRASH_HASH_TMP_FILE_SUF.length());
+                }
+            }
+        }
+        return "";
+    }
+
+    /**
+     * 存储中记录的重试队列key，记录的index和offset在压缩后会变化，这里只用存储文件、时间和hash
+     */
+    private static File getRecordRetryKey(CrashRecordStore store, long timestamp, String crashHash) {
+        return new File(store.getSegmentFile().getPath() + "#" + timestamp + "_" + crashHash.trim());
+    }
+
+    /**
+     * 上传记录存储中的崩溃，直接读取记录在seg中的数据，不还原为目录
+     *
+     * @param exts         参数
+     * @param nativeRecord true只处理Native崩溃，false处理其余类型
+     * @param maxNum       最大上传个数，超出的记录直接丢弃
+     * @return 统计结果
+     */
+    private int[] postStoredRecords(Map<String, String> exts, boolean nativeRecord, int maxNum) {
+        int uploadCount = 0;
+        int failedCount = 0;
+        int skippedCount = 0;
+        UploadRetryQueue retryQueue = mRetryQueue;
+        synchronized (mRecordStoreLock) {
+            ProcessLock pl = new ProcessLock(mContext, RECORD_STORE_LOCK, true);
+            try {
+                if (!pl.tryLock(1, 0, false)) {
+                    return new int[]{uploadCount, failedCount};
+                }
+                CrashRecordStore store = getRecordStore();
+                // 按时间倒序，与目录的上传顺序一致
+                List<CrashRecordStore.Entry> entries = store.listPending();
+                Collections.reverse(entries);
+                List<CrashRecordStore.Entry> submitted = new ArrayList<CrashRecordStore.Entry>();
+                List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+                for (CrashRecordStore.Entry entry : entries) {
+                    if ((entry.type == CrashReportImpl.NATIVE_CRASH_TYPE) != nativeRecord) {
+                        continue;
+                    }
+                    if (retryQueue != null && !retryQueue.isEligible(getRecordRetryKey(store, entry.timestamp, entry.crashHash))) {
+                        // 还在退避期间，不计入失败
+                        skippedCount++;
+                        continue;
+                    }
+                    if (submitted.size() >= maxNum) {
+                        store.markDone(entry);
+                        if (retryQueue != null) {
+                            retryQueue.remove(getRecordRetryKey(store, entry.timestamp, entry.crashHash));
+                        }
+                        failedCount++;
+                        continue;
+                    }
+                    submitted.add(entry);
+                    results.add(submitUpload(store, entry, exts));
+                }
+                for (int i = 0; i < submitted.size(); i++) {
+                    CrashRecordStore.Entry entry = submitted.get(i);
+                    File retryKey = getRecordRetryKey(store, entry.timestamp, entry.crashHash);
+                    int result = getUploadResult(results.get(i));
+                    if (result == 0) {
+                        uploadCount++;
+                        store.markDone(entry);
+                        if (retryQueue != null) {
+                            retryQueue.remove(retryKey);
+                        }
+                    } else {
+                        failedCount++;
+                        if (Math.abs(System.currentTimeMillis() - entry.timestamp) > MAX_CRASH_DIR_EXIST_TIME) {
+                            store.markDone(entry);
+                            if (retryQueue != null) {
+                                retryQueue.remove(retryKey);
+                            }
+                        } else if (retryQueue != null) {
+                            retryQueue.onFailure(retryKey, result);
+                        }
+                    }
+                }
+                store.compact();
+            } catch (Exception e) {
+                if (AppEnv.ISAPPDEBUG) {
+                    e.printStackTrace();
+                }
+            } finally {
+                pl.freeLock();
+            }
+        }
+
+        if (AppEnv.ISAPPDEBUG) {
+            Log.d(TAG, "the result of record store (native=" + nativeRecord + ") is\n" + "uploadCount = "
+                    + uploadCount + ", failedCount = " + failedCount + ", skippedCount = " + skippedCount);
+        }
+        return new int[]{uploadCount, failedCount};
+    }
+
     public String getJavaCrashFolder() {
         return getMobilesafeCrashFolder(CRASH_FOLDER);
     }
@@ -131,38 +539,41 @@ public class CrashCheckUpload {
         return getMobilesafeCrashFolder(DEFAULT_NATIVE_CRASH_FOLDER);
     }
 
-    private synchronized String getMobilesafeCrashFolder(String crashName) {
-        if (TextUtils.isEmpty(mCrashRootPath)) {
-            if (getSDCardFreeStorage() > 10 * 1024L && Environment.getExternalStorageState().equals(Environment.MEDIA_MOUNTED)) {
-                mCrashRootPath += (Environment.getExternalStorageDirectory().getPath() + "/360/" + mCrashInterface.getProduct() + File.separator);
-            }
+    private String getMobilesafeCrashFolder(String crashName) {
+        // 上传过程中持有this等待上传线程，这里不能再同步this
+        synchronized (sCrashRootPathLock) {
+            if (TextUtils.isEmpty(mCrashRootPath)) {
+                if (getSDCardFreeStorage() > 10 * 1024L && Environment.getExternalStorageState().equals(Environment.MEDIA_MOUNTED)) {
+                    mCrashRootPath += (Environment.getExternalStorageDirectory().getPath() + "/360/" + mCrashInterface.getProduct() + File.separator);
+                }
 
-            // 测试下防止出现没权限的情况
-            if (!TextUtils.isEmpty(mCrashRootPath)) {
-                try {
-                    //提前创建目录，避免因为该目录不存在，导致创建文件失败，从而在/data/data放置崩溃日志
-                    File crashRootPathFile = new File(mCrashRootPath);
-                    if (!crashRootPathFile.exists() || !crashRootPathFile.isDirectory()) {
-                        crashRootPathFile.mkdirs();
-                    }
+                // 测试下防止出现没权限的情况
+                if (!TextUtils.isEmpty(mCrashRootPath)) {
+                    try {
+                        //提前创建目录，避免因为该目录不存在，导致创建文件失败，从而在/data/data放置崩溃日志
+                        File crashRootPathFile = new File(mCrashRootPath);
+                        if (!crashRootPathFile.exists() || !crashRootPathFile.isDirectory()) {
+                            crashRootPathFile.mkdirs();
+                        }
 
-                    File testFile = new File(mCrashRootPath, "test");
-                    testFile.createNewFile();
-                    testFile.delete();
-                } catch (Exception e) {
-                    mCrashRootPath = "";
-                    if (AppEnv.ISAPPDEBUG) {
-                        e.printStackTrace();
+                        File testFile = new File(mCrashRootPath, "test");
+                        testFile.createNewFile();
+                        testFile.delete();
+                    } catch (Exception e) {
+                        mCrashRootPath = "";
+                        if (AppEnv.ISAPPDEBUG) {
+                            e.printStackTrace();
+                        }
                     }
                 }
-            }
 
-            if (TextUtils.isEmpty(mCrashRootPath)) {
-                mCrashRootPath += (mContext.getFilesDir() + File.separator);
+                if (TextUtils.isEmpty(mCrashRootPath)) {
+                    mCrashRootPath += (mContext.getFilesDir() + File.separator);
+                }
             }
-        }
 
-        return mCrashRootPath + crashName + File.separator;
+            return mCrashRootPath + crashName + File.separator;
+        }
     }
 
     private static List<File> sort(File[] list) {
@@ -182,6 +593,37 @@ public class CrashCheckUpload {
         return files;
     }
 
+    /**
+     * 遍历根目录，删除无效的文件和目录，返回有效的崩溃目录
+     *
+     * @param rootDir      根目录
+     * @param checkSummary 是否需要检查有crash_report文件
+     * @return 按目录名倒序排列
+     */
+    private List<CrashFolderIndex.Entry> scanCrashFolders(File rootDir, boolean checkSummary) {
+        List<CrashFolderIndex.Entry> entries = new ArrayList<CrashFolderIndex.Entry>();
+        File[] list = rootDir.listFiles();
+        if (list == null || list.length == 0) {
+            return entries;
+        }
+        for (File crashDir : sort(list)) {
+            try {
+                if (IsValidCrashFolder(crashDir, checkSummary)) {
+                    entries.add(CrashFolderIndex.create(crashDir, CrashFolderIndex.TYPE_UNKNOWN));
+                } else if (!(mCrashInterface.isDebugable() && crashDir.getName().endsWith("_UPLOAD"))) {
+                    if (crashDir.isDirectory()) {
+                        FileUtils.deleteDir(crashDir.getAbsolutePath());
+                    } else {
+                        FileUtils.deleteFile(crashDir.getAbsolutePath());
+                    }
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        return entries;
+    }
+
     private boolean IsValidCrashFolder(File dirPath, boolean checkSummary) {
         try {
             if (checkSummary) {
@@ -205,60 +647,116 @@ public class CrashCheckUpload {
      * @param checkSummary 是否需要检查有crash_report文件
      * @param maxNum       最大上传文件个数
      * @param bDeleted     是否需要删除剩余文件
+     * @param checkBackoff 是否跳过还在重试退避期间的目录
+     * @param archiveType  开启记录存储时，把剩余目录打包进存储所用的崩溃类型，小于0表示不打包
      * @return 统计结果
      */
-    private int[] postCrashFiles(File rootDir, Map<String, String> exts, boolean checkSummary, int maxNum, boolean bDeleted) {
+    private int[] postCrashFiles(File rootDir, Map<String, String> exts, boolean checkSummary, int maxNum, boolean bDeleted, boolean checkBackoff,
+                                 int archiveType) {
+        UploadRetryQueue retryQueue = mRetryQueue;
         int uploadCount = 0;
         int failedCount = 0;
-        if (rootDir != null && rootDir.exists() && rootDir.isDirectory() && rootDir.listFiles() != null && rootDir.listFiles().length > 0) {
-            List<File> logDirs = sort(rootDir.listFiles());
-            for (File crashDir : logDirs) {
+        int skippedCount = 0;
+        if (rootDir != null && rootDir.isDirectory()) {
+            // 优先使用索引，只有索引缺失或失效时才遍历根目录
+            CrashFolderIndex index = new CrashFolderIndex(rootDir);
+            List<CrashFolderIndex.Entry> entries = index.load();
+            if (entries == null) {
+                entries = scanCrashFolders(rootDir, checkSummary);
+            }
+            List<CrashFolderIndex.Entry> remain = new ArrayList<CrashFolderIndex.Entry>();
+            // 先提交最多maxNum个上传任务，再按顺序等待结果
+            List<CrashFolderIndex.Entry> submitted = new ArrayList<CrashFolderIndex.Entry>();
+            List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+            for (CrashFolderIndex.Entry entry : entries) {
+                File crashDir = new File(rootDir, entry.name);
                 try {
-                    if (IsValidCrashFolder(crashDir, checkSummary)) {
-                        if (uploadCount >= maxNum) {
-                            if (bDeleted) {
-                                FileUtils.deleteDir(crashDir.getAbsolutePath());
-                            }
-                            failedCount++;
-                            continue;
+                    if (!IsValidCrashFolder(crashDir, checkSummary)) {
+                        FileUtils.deleteDir(crashDir.getAbsolutePath());
+                        if (retryQueue != null) {
+                            retryQueue.remove(crashDir);
                         }
+                        continue;
+                    }
+
+                    if (checkBackoff && retryQueue != null && !retryQueue.isEligible(crashDir)) {
+                        // 还在退避期间，留给后台重试，本次没有尝试上传，不计入失败
+                        remain.add(entry);
+                        skippedCount++;
+                        continue;
+                    }
 
-                        if (reportCrashDataForm(crashDir, exts) == 0) {
-                            uploadCount++;
-                            if (!mCrashInterface.isDebugable()) {
-                                FileUtils.deleteDir(crashDir.getAbsolutePath());
-                            } else {
-                                try {
-                                    FileUtils.safeRenameTo(crashDir, new File(crashDir.getParentFile(), crashDir.getName() + "_UPLOAD"));
-                                } catch (Exception e) {
-                                    e.printStackTrace();
-                                }
+                    if (submitted.size() >= maxNum) {
+                        if (bDeleted) {
+                            FileUtils.deleteDir(crashDir.getAbsolutePath());
+                            if (retryQueue != null) {
+                                retryQueue.remove(crashDir);
                             }
                         } else {
-                            // 如果上传失败了，检查洗是否是30天以前的log，
-                            cleanOldCrashDirectory(crashDir);
-                            failedCount++;
+                            remain.add(entry);
+                        }
+                        failedCount++;
+                        continue;
+                    }
+
+                    results.add(submitUpload(crashDir, exts));
+                    submitted.add(entry);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    // 没有处理完的目录仍然留在索引中，否则在索引失效前不会再被上传
+                    if (crashDir.exists() && !remain.contains(entry)) {
+                        remain.add(entry);
+                    }
+                }
+            }
+            for (int i = 0; i < submitted.size(); i++) {
+                CrashFolderIndex.Entry entry = submitted.get(i);
+                File crashDir = new File(rootDir, entry.name);
+                try {
+                    int result = getUploadResult(results.get(i));
+                    if (result == 0) {
+                        uploadCount++;
+                        if (retryQueue != null) {
+                            retryQueue.remove(crashDir);
+                        }
+                        if (!mCrashInterface.isDebugable()) {
+                            FileUtils.deleteDir(crashDir.getAbsolutePath());
+                        } else {
+                            try {
+                                FileUtils.safeRenameTo(crashDir, new File(crashDir.getParentFile(), crashDir.getName() + "_UPLOAD"));
+                            } catch (Exception e) {
+                                e.printStackTrace();
+                            }
                         }
                     } else {
-                        if (!(mCrashInterface.isDebugable() && crashDir.getName().endsWith("_UPLOAD"))) {
-                            if (crashDir.isDirectory()) {
-                                FileUtils.deleteDir(crashDir.getAbsolutePath());
-                            } else {
-                                FileUtils.deleteFile(crashDir.getAbsolutePath());
+                        // 如果上传失败了，检查洗是否是30天以前的log，
+                        if (!cleanOldCrashDirectory(crashDir)) {
+                            remain.add(entry);
+                            if (retryQueue != null) {
+                                retryQueue.onFailure(crashDir, result);
                             }
+                        } else if (retryQueue != null) {
+                            retryQueue.remove(crashDir);
                         }
+                        failedCount++;
                     }
                 } catch (Exception e) {
                     e.printStackTrace();
+                    if (crashDir.exists() && !remain.contains(entry)) {
+                        remain.add(entry);
+                    }
                 }
-
             }
+            if (archiveType >= 0 && mRecordStoreEnabled && !remain.isEmpty()) {
+                remain = archiveCrashFolders(rootDir, remain, archiveType);
+            }
+            index.save(remain);
         }
         failedCount += (failedCount == 0 ? 0 : 1);
 
         if (AppEnv.ISAPPDEBUG) {
             Log.d(TAG, "the result of " + rootDir.getAbsolutePath() + " is\n" + "uploadCount = "
-                    + uploadCount + ", failedCount = " + failedCount);
+                    + uploadCount + ", failedCount = " + failedCount + ", skippedCount = " + skippedCount);
         }
         return new int[]{uploadCount, failedCount};
     }
@@ -281,7 +779,7 @@ public class CrashCheckUpload {
 
             for (String rootDir : javaCrashList) {
                 try {
-                    int[] count = postCrashFiles(new File(rootDir), exts, true, 10, true);
+                    int[] count = postCrashFiles(new File(rootDir), exts, true, 10, true, true, CrashReportImpl.JAVA_CRASH_TYPE);
                     uploadCount += count[0];
                     failedCount += count[1];
                 } catch (Exception e) {
@@ -289,6 +787,10 @@ public class CrashCheckUpload {
                 }
 
             }
+
+            int[] count = postStoredRecords(exts, false, 10);
+            uploadCount += count[0];
+            failedCount += count[1];
         } catch (Exception e1) {
             e1.printStackTrace();
         }
@@ -315,7 +817,7 @@ public class CrashCheckUpload {
 
             for (String rootDir : nativeCrashList) {
                 try {
-                    int[] count = postCrashFiles(new File(rootDir), exts, true, 10, true);
+                    int[] count = postCrashFiles(new File(rootDir), exts, true, 10, true, true, CrashReportImpl.NATIVE_CRASH_TYPE);
                     uploadCount += count[0];
                     failedCount += count[1];
                 } catch (Exception e) {
@@ -323,6 +825,10 @@ public class CrashCheckUpload {
                 }
 
             }
+
+            int[] count = postStoredRecords(exts, true, 10);
+            uploadCount += count[0];
+            failedCount += count[1];
         } catch (Exception e1) {
             e1.printStackTrace();
         }
@@ -468,12 +974,13 @@ public class CrashCheckUpload {
         int uploadCount = 0;
         int failedCount = 0;
         ArrayList<String> uploadedFileList = new ArrayList<String>();
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>();
         try {
             File crashSummaryFile = new File(rootDir, ICrashCollector.SUMMARY_FILE);
             Pattern pattern = Pattern.compile("^[0-9a-zA-Z\\-]*\\.dmp");
             Matcher matcher;
             for (File file : dumpFiles) {
-                if (uploadCount >= maxNum) {
+                if (results.size() >= maxNum) {
                     break;
                 }
 
@@ -524,15 +1031,7 @@ public class CrashCheckUpload {
                         }
                     }
 
-                    int result = reportCrashDataForm(fileArrayInSameCrash, exts);
-                    if (AppEnv.ISAPPDEBUG) {
-                        Log.d(TAG, "rootDir = " + rootDir + ", result = " + result);
-                    }
-                    if (result == 0) {
-                        uploadCount++;
-                    } else {
-                        failedCount++;
-                    }
+                    results.add(submitUpload(fileArrayInSameCrash, exts));
                 }
             }
         } catch (Exception e) {
@@ -542,6 +1041,19 @@ public class CrashCheckUpload {
             failedCount++;
         }
 
+        // 全部上传结束后才能清理目录
+        for (Future<Integer> future : results) {
+            int result = getUploadResult(future);
+            if (AppEnv.ISAPPDEBUG) {
+                Log.d(TAG, "rootDir = " + rootDir + ", result = " + result);
+            }
+            if (result == 0) {
+                uploadCount++;
+            } else {
+                failedCount++;
+            }
+        }
+
         if (bDeleted) {
             clearAllDumpFiles(new File(rootDir));
         }
@@ -589,6 +1101,8 @@ public class CrashCheckUpload {
 
     private synchronized int dealWithUploadTask(Map<String, String> exts, boolean uploadOnNewThread) {
         int uploadResult = 0;
+        mUploadExecutor = createUploadExecutor();
+        mRetryQueue = beginRetryPass();
         try {
             UploadThread uploadThread = new UploadThread(exts, "CrashUploadThread");
             if (uploadOnNewThread) {
@@ -600,6 +1114,11 @@ public class CrashCheckUpload {
             uploadResult = uploadThread.getUploadResult();
         } catch (Exception e) {
             e.printStackTrace();
+        } finally {
+            mUploadExecutor.shutdown();
+            mUploadExecutor = null;
+            endRetryPass(mRetryQueue, exts);
+            mRetryQueue = null;
         }
 
         return uploadResult;
@@ -621,7 +1140,18 @@ public class CrashCheckUpload {
                 if (AppEnv.ISAPPDEBUG) {
                     Log.d(TAG, "ready to upload crash file " + rootDir.getAbsolutePath());
                 }
-                int[] count = postCrashFiles(rootDir, exts, true, maxNum, false);
+                int[] count;
+                mUploadExecutor = createUploadExecutor();
+                // 用户主动上传时不检查退避时间，但仍然记录结果
+                mRetryQueue = beginRetryPass();
+                try {
+                    count = postCrashFiles(rootDir, exts, true, maxNum, false, false, -1);
+                } finally {
+                    mUploadExecutor.shutdown();
+                    mUploadExecutor = null;
+                    endRetryPass(mRetryQueue, exts);
+                    mRetryQueue = null;
+                }
                 result = count[0];
                 if (count[0] == 0 && count[1] == 0) {
                     result = -1; // 没有失败上传,我们也认为是成功
@@ -0,0 +1,206 @@
+package tech.jcjc.crashcollection.crashupload;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import tech.jcjc.crashcollection.AppEnv;
+
+/**
+ * 崩溃根目录下待上传目录的索引，保存在根目录的上一级(&lt;根目录名&gt;.idx)，避免每次上传都遍历根目录并逐个stat。
+ * <p>
+ * 第一行为版本、保存时根目录的修改时间和保存时间，之后每行一个崩溃目录："目录名 大小 修改时间 类型"。
+ * 根目录的修改时间与记录不一致、索引超过{@link #MAX_INDEX_AGE}或文件损坏时视为失效，由调用方重新扫描后保存。
+ * 保存时先写临时文件再改名，多进程同时写入时最多导致下一次重建。
+ */
+public class CrashFolderIndex {
+    private static final String INDEX_SUFFIX = ".idx";
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final String VERSION = "v1";
+
+    // 防止修改时间精度不足漏掉变化，超过该时间的索引强制重建
+    private static final long MAX_INDEX_AGE = 24 * 3600 * 1000L;
+
+    // 类型未知，重建时无法得知目录的崩溃类型
+    public static final int TYPE_UNKNOWN = -1;
+
+    private final File mRootDir;
+
+    private final File mIndexFile;
+
+    public static class Entry {
+        public final String name;
+
+        public final long size;
+
+        public final long lastModified;
+
+        public final int type;
+
+        public Entry(String name, long size, long lastModified, int type) {
+            this.name = name;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.type = type;
+        }
+    }
+
+    public CrashFolderIndex(File rootDir) {
+        mRootDir = rootDir;
+        mIndexFile = new File(rootDir.getParentFile(), rootDir.getName() + INDEX_SUFFIX);
+    }
+
+    /**
+     * 读取索引
+     *
+     * @return 按目录名倒序排列，索引缺失或失效时返回null
+     */
+    public synchronized List<Entry> load() {
+        return load(mRootDir.lastModified());
+    }
+
+    /* 记录的根目录修改时间与rootModified不一致时视为失效 */
+    private List<Entry> load(long rootModified) {
+        if (!mIndexFile.exists()) {
+            return null;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(mIndexFile)));
+            String[] header = split(reader.readLine());
+            if (header == null || header.length != 3 || !VERSION.equals(header[0])) {
+                return null;
+            }
+            long savedRootModified = Long.parseLong(header[1]);
+            long savedTime = Long.parseLong(header[2]);
+            if (savedRootModified != rootModified || Math.abs(System.currentTimeMillis() - savedTime) > MAX_INDEX_AGE) {
+                return null;
+            }
+            List<Entry> entries = new ArrayList<Entry>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = split(line);
+                if (fields == null || fields.length != 4) {
+                    return null;
+                }
+                entries.add(new Entry(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2]), Integer.parseInt(fields[3])));
+            }
+            sort(entries);
+            return entries;
+        } catch (Exception e) {
+            if (AppEnv.ISAPPDEBUG) {
+                e.printStackTrace();
+            }
+            return null;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (Exception e) {
+                    //ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * 保存索引，记录当前根目录的修改时间
+     */
+    public synchronized boolean save(List<Entry> entries) {
+        File tempFile = new File(mIndexFile.getPath() + TEMP_SUFFIX);
+        FileOutputStream out = null;
+        try {
+            StringBuilder sb = new StringBuilder();
+            sb.append(VERSION).append(' ').append(mRootDir.lastModified()).append(' ').append(System.currentTimeMillis()).append('\n');
+            for (Entry entry : entries) {
+                sb.append(entry.name).append(' ').append(entry.size).append(' ').append(entry.lastModified).append(' ').append(entry.type).append('\n');
+            }
+            out = new FileOutputStream(tempFile);
+            out.write(sb.toString().getBytes());
+            out.flush();
+            out.close();
+            out = null;
+            return tempFile.renameTo(mIndexFile);
+        } catch (Exception e) {
+            if (AppEnv.ISAPPDEBUG) {
+                e.printStackTrace();
+            }
+            tempFile.delete();
+            return false;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (Exception e) {
+                    //ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * 收集完成后登记一个崩溃目录。
+     * 只有创建该目录之前索引仍然有效时才能登记并更新记录的根目录修改时间，
+     * 否则根目录中可能还有其他未登记的目录，直接删除索引，下次上传时重建
+     *
+     * @param crashDir           崩溃目录
+     * @param type               崩溃类型
+     * @param rootModifiedBefore 创建崩溃目录之前根目录的修改时间
+     */
+    public synchronized void add(File crashDir, int type, long rootModifiedBefore) {
+        List<Entry> entries = load(rootModifiedBefore);
+        if (entries == null) {
+            mIndexFile.delete();
+            return;
+        }
+        removeEntry(entries, crashDir.getName());
+        entries.add(create(crashDir, type));
+        save(entries);
+    }
+
+    /**
+     * 根据目录的当前状态生成索引项
+     */
+    public static Entry create(File crashDir, int type) {
+        long size = 0;
+        File[] files = crashDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                size += file.length();
+            }
+        }
+        return new Entry(crashDir.getName(), size, crashDir.lastModified(), type);
+    }
+
+    private static void removeEntry(List<Entry> entries, String name) {
+        for (int i = entries.size() - 1; i >= 0; i--) {
+            if (entries.get(i).name.equals(name)) {
+                entries.remove(i);
+            }
+        }
+    }
+
+    private static void sort(List<Entry> entries) {
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry o1, Entry o2) {
+                return o2.name.compareTo(o1.name);
+            }
+        });
+    }
+
+    private static String[] split(String line) {
+        if (line == null || line.length() == 0) {
+            return null;
+        }
+        return line.split(" ");
+    }
+}
@@ -0,0 +1,673 @@
+package tech.jcjc.crashcollection.crashupload;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import tech.jcjc.crashcollection.AppEnv;
+import tech.jcjc.crashcollection.collector.CollectorEngine;
+import tech.jcjc.crashcollection.utils.ZipUtil;
+
+/**
+ * 追加写入的崩溃记录存储，代替每次崩溃一个目录。
+ * <p>
+ * crash_records.seg依次保存各条记录，每条记录为：魔数、记录长度、CRASH_HASH、时间、类型、文件数，
+ * 之后是各文件的文件名和内容，均带长度前缀，可以顺序扫描。
+ * crash_records.idx为定长的索引项，保存hash、时间、类型、记录在seg中的位置、长度和状态，
+ * 上传时只需顺序读取索引；索引丢失或与seg不一致时通过扫描seg重建。
+ * 记录处理完后同时改写索引中的状态和seg中该记录的魔数，重建索引时仍能区分已处理的记录。
+ * <p>
+ * 所有记录都处理完后删除两个文件；已处理的记录占seg一半以上时，把未处理的记录拷贝到新文件中压缩。
+ * 跨进程的互斥由调用方负责。
+ */
+public class CrashRecordStore {
+    private static final String SEGMENT_FILE = "crash_records.seg";
+
+    private static final String INDEX_FILE = "crash_records.idx";
+
+    private static final int RECORD_MAGIC = 0x43524543;
+
+    // 已处理的记录的魔数
+    private static final int RECORD_MAGIC_DONE = 0x43524544;
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final int HASH_LENGTH = 32;
+
+    // hash(32) + time(8) + type(4) + offset(8) + length(4) + state(4) + 保留(4)
+    private static final int INDEX_ENTRY_SIZE = 64;
+
+    private static final int STATE_OFFSET = HASH_LENGTH + 8 + 4 + 8 + 4;
+
+    public static final int STATE_PENDING = 0;
+
+    public static final int STATE_DONE = 1;
+
+    private static final int COPY_BUFFER_SIZE = 8 * 1024;
+
+    private final File mSegmentFile;
+
+    private final File mIndexFile;
+
+    /**
+     * 一条记录的索引
+     */
+    public static class Entry {
+        public final int index;
+
+        public final String crashHash;
+
+        public final long timestamp;
+
+        public final int type;
+
+        public final long offset;
+
+        public final int length;
+
+        public final int state;
+
+        Entry(int index, String crashHash, long timestamp, int type, long offset, int length, int state) {
+            this.index = index;
+            this.crashHash = crashHash;
+            this.timestamp = timestamp;
+            this.type = type;
+            this.offset = offset;
+            this.length = length;
+            this.state = state;
+        }
+    }
+
+    public CrashRecordStore(File dir) {
+        mSegmentFile = new File(dir, SEGMENT_FILE);
+        mIndexFile = new File(dir, INDEX_FILE);
+    }
+
+    public File getSegmentFile() {
+        return mSegmentFile;
+    }
+
+    /**
+     * 把一个崩溃目录下的文件打包为一条记录追加到存储中，不处理子目录
+     *
+     * @param crashDir  崩溃目录
+     * @param crashHash CRASH_HASH
+     * @param timestamp 崩溃时间
+     * @param type      崩溃类型
+     * @return 是否成功，失败时存储中不会留下不完整的索引
+     */
+    public synchronized boolean append(File crashDir, String crashHash, long timestamp, int type) {
+        File[] files = crashDir.listFiles();
+        if (files == null) {
+            return false;
+        }
+        List<File> contents = new ArrayList<File>();
+        for (File file : files) {
+            if (file.isFile() && !file.getName().endsWith(CollectorEngine.PART_FILE_SUF)) {
+                contents.add(file);
+            }
+        }
+
+        File parent = mSegmentFile.getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+        // 索引丢失(例如压缩中途进程被杀死)时先重建，否则新建的索引只有这一条记录，seg中已有的记录不会再被列出
+        if (readIndex() == null) {
+            rebuildIndex();
+        }
+        byte[] hash = toHashBytes(crashHash);
+        long offset = mSegmentFile.length();
+        long length = 4 + 4 + HASH_LENGTH + 8 + 4 + 4;
+        for (File file : contents) {
+            length += 2 + file.getName().getBytes().length + 4 + file.length();
+        }
+        if (length > Integer.MAX_VALUE) {
+            return false;
+        }
+
+        DataOutputStream out = null;
+        boolean success = false;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mSegmentFile, true), COPY_BUFFER_SIZE));
+            out.writeInt(RECORD_MAGIC);
+            out.writeInt((int) length);
+            out.write(hash);
+            out.writeLong(timestamp);
+            out.writeInt(type);
+            out.writeInt(contents.size());
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            for (File file : contents) {
+                byte[] name = file.getName().getBytes();
+                out.writeShort(name.length);
+                out.write(name);
+                long fileLength = file.length();
+                out.writeInt((int) fileLength);
+                copy(file, fileLength, out, buffer);
+            }
+            out.flush();
+            success = true;
+        } catch (Exception e) {
+            if (AppEnv.ISAPPDEBUG) {
+                e.printStackTrace();
+            }
+        } finally {
+            closeQuietly(out);
+        }
+
+        if (!success) {
+            truncateSegment(offset);
+            return false;
+        }
+        if (!appendIndex(mIndexFile, hash, timestamp, type, offset, (int) length, STATE_PENDING)) {
+            truncateSegment(offset);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 顺序读取索引，返回所有未处理的记录，索引缺失或与seg不一致时先重建
+     *
+     * @return 按写入顺序排列
+     */
+    public synchronized List<Entry> listPending() {
+        List<Entry> entries = readIndex();
+        if (entries == null) {
+            entries = rebuildIndex();
+        }
+        List<Entry> pending = new ArrayList<Entry>();
+        for (Entry entry : entries) {
+            if (entry.state == STATE_PENDING) {
+                pending.add(entry);
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * 把一条记录还原为目录
+     *
+     * @param entry   索引
+     * @param destDir 目标目录
+     * @return 是否成功
+     */
+    public synchronized boolean extract(Entry entry, File destDir) {
+        RandomAccessFile segment = null;
+        try {
+            if (!destDir.exists() && !destDir.mkdirs()) {
+                return false;
+            }
+            segment = new RandomAccessFile(mSegmentFile, "r");
+            segment.seek(entry.offset);
+            if (segment.readInt() != RECORD_MAGIC || segment.readInt() != entry.length) {
+                return false;
+            }
+            segment.skipBytes(HASH_LENGTH + 8 + 4);
+            int fileCount = segment.readInt();
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            for (int i = 0; i < fileCount; i++) {
+                byte[] name = new byte[segment.readUnsignedShort()];
+                segment.readFully(name);
+                String fileName = new File(new String(name)).getName();
+                int remain = segment.readInt();
+                FileOutputStream out = new FileOutputStream(new File(destDir, fileName));
+                try {
+                    while (remain > 0) {
+                        int count = segment.read(buffer, 0, Math.min(remain, buffer.length));
+                        if (count < 0) {
+                            throw new EOFException();
+                        }
+                        out.write(buffer, 0, count);
+                        remain -= count;
+                    }
+                } finally {
+                    closeQuietly(out);
+                }
+            }
+            return true;
+        } catch (Exception e) {
+            if (AppEnv.ISAPPDEBUG) {
+                e.printStackTrace();
+            }
+            return false;
+        } finally {
+            closeQuietly(segment);
+        }
+    }
+
+    /**
+     * 直接读取一条记录中的各个文件，不还原为目录，上传时按文件在seg中的位置读取
+     *
+     * @param entry 索引
+     * @return 记录损坏或已处理时返回null。在记录被压缩或删除之前有效
+     */
+    public synchronized ZipUtil.ZipSource openRecord(Entry entry) {
+        RandomAccessFile segment = null;
+        try {
+            segment = new RandomAccessFile(mSegmentFile, "r");
+            segment.seek(entry.offset);
+            if (segment.readInt() != RECORD_MAGIC || segment.readInt() != entry.length) {
+                return null;
+            }
+            segment.skipBytes(HASH_LENGTH + 8 + 4);
+            int fileCount = segment.readInt();
+            long end = entry.offset + entry.length;
+            String[] names = new String[fileCount];
+            long[] offsets = new long[fileCount];
+            long[] lengths = new long[fileCount];
+            for (int i = 0; i < fileCount; i++) {
+                byte[] name = new byte[segment.readUnsignedShort()];
+                segment.readFully(name);
+                names[i] = new File(new String(name)).getName();
+                lengths[i] = segment.readInt();
+                offsets[i] = segment.getFilePointer();
+                if (lengths[i] < 0 || offsets[i] + lengths[i] > end) {
+                    return null;
+                }
+                segment.seek(offsets[i] + lengths[i]);
+            }
+            return new RecordSource(mSegmentFile, names, offsets, lengths);
+        } catch (Exception e) {
+            if (AppEnv.ISAPPDEBUG) {
+                e.printStackTrace();
+            }
+            return null;
+        } finally {
+            closeQuietly(segment);
+        }
+    }
+
+    private static class RecordSource implements ZipUtil.ZipSource {
+        private final File mSegmentFile;
+
+        private final String[] mNames;
+
+        private final long[] mOffsets;
+
+        private final long[] mLengths;
+
+        RecordSource(File segmentFile, String[] names, long[] offsets, long[] lengths) {
+            mSegmentFile = segmentFile;
+            mNames = names;
+            mOffsets = offsets;
+            mLengths = lengths;
+        }
+
+        @Override
+        public int getCount() {
+            return mNames.length;
+        }
+
+        @Override
+        public String getName(int index) {
+            return mNames[index];
+        }
+
+        @Override
+        public long getLength(int index) {
+            return mLengths[index];
+        }
+
+        @Override
+        public InputStream open(int index) throws IOException {
+            FileInputStream in = new FileInputStream(mSegmentFile);
+            try {
+                in.getChannel().position(mOffsets[index]);
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+            return new RangeInputStream(in, mLengths[index]);
+        }
+    }
+
+    /* 只读取seg中一个文件的长度，之后返回结尾 */
+    private static class RangeInputStream extends FilterInputStream {
+        private long mRemain;
+
+        RangeInputStream(InputStream in, long length) {
+            super(in);
+            mRemain = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (mRemain <= 0) {
+                return -1;
+            }
+            int b = super.read();
+            if (b >= 0) {
+                mRemain--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (mRemain <= 0) {
+                return -1;
+            }
+            int count = super.read(b, off, (int) Math.min(len, mRemain));
+            if (count > 0) {
+                mRemain -= count;
+            }
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(Math.min(n, mRemain));
+            mRemain -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), mRemain);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    /**
+     * 标记一条记录已处理(上传成功或放弃)
+     */
+    public synchronized void markDone(Entry entry) {
+        RandomAccessFile segment = null;
+        try {
+            segment = new RandomAccessFile(mSegmentFile, "rw");
+            segment.seek(entry.offset);
+            if (segment.readInt() == RECORD_MAGIC) {
+                segment.seek(entry.offset);
+                segment.writeInt(RECORD_MAGIC_DONE);
+            }
+        } catch (Exception e) {
+            if (AppEnv.ISAPPDEBUG) {
+                e.printStackTrace();
+            }
+        } finally {
+            closeQuietly(segment);
+        }
+        RandomAccessFile index = null;
+        try {
+            index = new RandomAccessFile(mIndexFile, "rw");
+            index.seek((long) entry.index * INDEX_ENTRY_SIZE + STATE_OFFSET);
+            index.writeInt(STATE_DONE);
+        } catch (Exception e) {
+            if (AppEnv.ISAPPDEBUG) {
+                e.printStackTrace();
+            }
+        } finally {
+            closeQuietly(index);
+        }
+    }
+
+    /**
+     * 所有记录都已处理时删除存储文件；已处理的记录占seg一半以上时，只保留未处理的记录。
+     * 压缩后记录的index和offset会变化，之前获取的Entry不能再使用
+     */
+    public synchronized void compact() {
+        File segmentTemp = new File(mSegmentFile.getPath() + TEMP_SUFFIX);
+        File indexTemp = new File(mIndexFile.getPath() + TEMP_SUFFIX);
+        segmentTemp.delete();
+        indexTemp.delete();
+        List<Entry> entries = readIndex();
+        if (entries == null) {
+            return;
+        }
+        List<Entry> pending = new ArrayList<Entry>();
+        long pendingLength = 0;
+        for (Entry entry : entries) {
+            if (entry.state == STATE_PENDING) {
+                pending.add(entry);
+                pendingLength += entry.length;
+            }
+        }
+        if (pending.isEmpty()) {
+            mIndexFile.delete();
+            mSegmentFile.delete();
+            return;
+        }
+        if (pendingLength * 2 > mSegmentFile.length()) {
+            return;
+        }
+
+        RandomAccessFile segment = null;
+        DataOutputStream out = null;
+        boolean success = false;
+        try {
+            segment = new RandomAccessFile(mSegmentFile, "r");
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(segmentTemp), COPY_BUFFER_SIZE));
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            long offset = 0;
+            for (Entry entry : pending) {
+                segment.seek(entry.offset);
+                int remain = entry.length;
+                while (remain > 0) {
+                    int count = segment.read(buffer, 0, Math.min(remain, buffer.length));
+                    if (count < 0) {
+                        throw new EOFException();
+                    }
+                    out.write(buffer, 0, count);
+                    remain -= count;
+                }
+                if (!appendIndex(indexTemp, toHashBytes(entry.crashHash), entry.timestamp, entry.type, offset, entry.length, STATE_PENDING)) {
+                    throw new EOFException();
+                }
+                offset += entry.length;
+            }
+            out.flush();
+            success = true;
+        } catch (Exception e) {
+            if (AppEnv.ISAPPDEBUG) {
+                e.printStackTrace();
+            }
+        } finally {
+            closeQuietly(out);
+            closeQuietly(segment);
+        }
+        if (!success) {
+            segmentTemp.delete();
+            indexTemp.delete();
+            return;
+        }
+        // 先删除旧索引，任何一步中断后都只剩下没有索引的seg，由rebuildIndex按魔数恢复
+        mIndexFile.delete();
+        if (segmentTemp.renameTo(mSegmentFile)) {
+            indexTemp.renameTo(mIndexFile);
+        } else {
+            segmentTemp.delete();
+            indexTemp.delete();
+        }
+    }
+
+    private boolean appendIndex(File indexFile, byte[] hash, long timestamp, int type, long offset, int length, int state) {
+        RandomAccessFile index = null;
+        try {
+            index = new RandomAccessFile(indexFile, "rw");
+            // 丢弃末尾不完整的索引项
+            long entryCount = index.length() / INDEX_ENTRY_SIZE;
+            index.setLength(entryCount * INDEX_ENTRY_SIZE);
+            index.seek(entryCount * INDEX_ENTRY_SIZE);
+            byte[] entry = new byte[INDEX_ENTRY_SIZE];
+            System.arraycopy(hash, 0, entry, 0, HASH_LENGTH);
+            int pos = HASH_LENGTH;
+            pos = putLong(entry, pos, timestamp);
+            pos = putInt(entry, pos, type);
+            pos = putLong(entry, pos, offset);
+            pos = putInt(entry, pos, length);
+            putInt(entry, pos, state);
+            index.write(entry);
+            return true;
+        } catch (Exception e) {
+            if (AppEnv.ISAPPDEBUG) {
+                e.printStackTrace();
+            }
+            return false;
+        } finally {
+            closeQuietly(index);
+        }
+    }
+
+    /* 读取索引，索引缺失或各项没有恰好覆盖整个seg时返回null */
+    private List<Entry> readIndex() {
+        if (!mIndexFile.exists()) {
+            return mSegmentFile.exists() ? null : new ArrayList<Entry>();
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mIndexFile), COPY_BUFFER_SIZE));
+            int entryCount = (int) (mIndexFile.length() / INDEX_ENTRY_SIZE);
+            List<Entry> entries = new ArrayList<Entry>(entryCount);
+            byte[] hash = new byte[HASH_LENGTH];
+            long segmentLength = mSegmentFile.length();
+            long end = 0;
+            for (int i = 0; i < entryCount; i++) {
+                in.readFully(hash);
+                long timestamp = in.readLong();
+                int type = in.readInt();
+                long offset = in.readLong();
+                int length = in.readInt();
+                int state = in.readInt();
+                in.readInt();
+                if (offset != end || length <= 0 || offset + length > segmentLength) {
+                    return null;
+                }
+                end = offset + length;
+                entries.add(new Entry(i, new String(hash).trim(), timestamp, type, offset, length, state));
+            }
+            // seg中有索引之外的记录，例如写入seg后、写入索引前进程被杀死
+            return end == segmentLength ? entries : null;
+        } catch (Exception e) {
+            if (AppEnv.ISAPPDEBUG) {
+                e.printStackTrace();
+            }
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /* 顺序扫描seg重建索引，按魔数恢复记录的状态，遇到损坏的记录时截断 */
+    private List<Entry> rebuildIndex() {
+        List<Entry> entries = new ArrayList<Entry>();
+        mIndexFile.delete();
+        RandomAccessFile segment = null;
+        long offset = 0;
+        try {
+            segment = new RandomAccessFile(mSegmentFile, "r");
+            long segmentLength = segment.length();
+            byte[] hash = new byte[HASH_LENGTH];
+            while (offset + 8 <= segmentLength) {
+                segment.seek(offset);
+                int magic = segment.readInt();
+                if (magic != RECORD_MAGIC && magic != RECORD_MAGIC_DONE) {
+                    break;
+                }
+                int state = magic == RECORD_MAGIC ? STATE_PENDING : STATE_DONE;
+                int length = segment.readInt();
+                if (length <= 0 || offset + length > segmentLength) {
+                    break;
+                }
+                segment.readFully(hash);
+                long timestamp = segment.readLong();
+                int type = segment.readInt();
+                if (!appendIndex(mIndexFile, hash, timestamp, type, offset, length, state)) {
+                    break;
+                }
+                entries.add(new Entry(entries.size(), new String(hash).trim(), timestamp, type, offset, length, state));
+                offset += length;
+            }
+        } catch (Exception e) {
+            if (AppEnv.ISAPPDEBUG) {
+                e.printStackTrace();
+            }
+        } finally {
+            closeQuietly(segment);
+        }
+        truncateSegment(offset);
+        return entries;
+    }
+
+    private void truncateSegment(long length) {
+        RandomAccessFile segment = null;
+        try {
+            if (mSegmentFile.exists() && mSegmentFile.length() > length) {
+                segment = new RandomAccessFile(mSegmentFile, "rw");
+                segment.setLength(length);
+            }
+        } catch (Exception e) {
+            if (AppEnv.ISAPPDEBUG) {
+                e.printStackTrace();
+            }
+        } finally {
+            closeQuietly(segment);
+        }
+    }
+
+    private static void copy(File file, long length, DataOutputStream out, byte[] buffer) throws Exception {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            long remain = length;
+            while (remain > 0) {
+                int count = in.read(buffer, 0, (int) Math.min(remain, buffer.length));
+                if (count < 0) {
+                    throw new EOFException();
+                }
+                out.write(buffer, 0, count);
+                remain -= count;
+            }
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private static byte[] toHashBytes(String crashHash) {
+        byte[] hash = new byte[HASH_LENGTH];
+        byte[] src = crashHash != null ? crashHash.getBytes() : new byte[0];
+        System.arraycopy(src, 0, hash, 0, Math.min(src.length, HASH_LENGTH));
+        for (int i = src.length; i < HASH_LENGTH; i++) {
+            hash[i] = ' ';
+        }
+        return hash;
+    }
+
+    private static int putLong(byte[] data, int pos, long value) {
+        for (int i = 7; i >= 0; i--) {
+            data[pos++] = (byte) (value >>> (i * 8));
+        }
+        return pos;
+    }
+
+    private static int putInt(byte[] data, int pos, int value) {
+        for (int i = 3; i >= 0; i--) {
+            data[pos++] = (byte) (value >>> (i * 8));
+        }
+        return pos;
+    }
+
+    private static void closeQuietly(java.io.Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (Exception e) {
+                //ignore
+            }
+        }
+    }
+}
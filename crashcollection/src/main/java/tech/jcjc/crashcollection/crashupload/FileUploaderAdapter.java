@@ -0,0 +1,56 @@
+package tech.jcjc.crashcollection.crashupload;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+
+import tech.jcjc.crashcollection.AppEnv;
+import tech.jcjc.crashcollection.interfaces.ICrashInterface;
+
+/**
+ * 把按文件上传的{@link ICrashInterface.IUploader}适配为{@link ICrashInterface.IStreamUploader}：
+ * 先把报告内容写入临时文件，完整后再交给IUploader，上传结束后删除临时文件
+ */
+public class FileUploaderAdapter implements ICrashInterface.IStreamUploader {
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    private final ICrashInterface.IUploader mUploader;
+
+    private final File mTempFile;
+
+    public FileUploaderAdapter(ICrashInterface.IUploader uploader, File tempFile) {
+        mUploader = uploader;
+        mTempFile = tempFile;
+    }
+
+    @Override
+    public long doUpload(ICrashInterface.UploadRequest request, InputStream body) {
+        FileOutputStream out = null;
+        try {
+            mTempFile.delete();
+            out = new FileOutputStream(mTempFile);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int count;
+            while ((count = body.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            out.close();
+            out = null;
+            return mUploader.doUpload(request.crashHash, mTempFile);
+        } catch (Exception e) {
+            if (AppEnv.ISAPPDEBUG) {
+                e.printStackTrace();
+            }
+            return -99;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (Exception e) {
+                    //ignore
+                }
+            }
+            mTempFile.delete();
+        }
+    }
+}
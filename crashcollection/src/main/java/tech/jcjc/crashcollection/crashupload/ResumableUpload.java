@@ -0,0 +1,243 @@
+package tech.jcjc.crashcollection.crashupload;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.zip.CRC32;
+
+import tech.jcjc.crashcollection.AppEnv;
+import tech.jcjc.crashcollection.interfaces.ICrashInterface;
+
+/**
+ * 可断点续传的分块上传。准备好的报告(压缩加密后)保存为&lt;name&gt;.pkg，进度保存在&lt;name&gt;.ckpt：
+ * "版本 报告长度 报告CRC32 分块大小 已确认的字节数 uploadId"。每个分块确认后更新进度，
+ * 上传失败时两个文件都保留，下次从最后确认的分块继续；报告被修改或进度文件损坏时从头开始。
+ */
+public class ResumableUpload {
+    private static final String PACKAGE_SUFFIX = ".pkg";
+
+    private static final String CHECKPOINT_SUFFIX = ".ckpt";
+
+    private static final String VERSION = "v1";
+
+    public static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+
+    // 超过该时间没有更新的报告不再续传，由prune删除
+    private static final long MAX_PACKAGE_AGE = 7 * 24 * 3600 * 1000L;
+
+    private final File mPackageFile;
+
+    private final File mCheckpointFile;
+
+    private final int mChunkSize;
+
+    private long mLength;
+
+    private long mCrc;
+
+    private long mAcked;
+
+    private String mUploadId;
+
+    /**
+     * @param dir       报告和进度文件所在目录
+     * @param name      报告名，同一份报告多次上传时必须相同
+     * @param chunkSize 分块大小，只在新建进度时使用
+     */
+    public ResumableUpload(File dir, String name, int chunkSize) {
+        mPackageFile = new File(dir, name + PACKAGE_SUFFIX);
+        mCheckpointFile = new File(dir, name + CHECKPOINT_SUFFIX);
+        mChunkSize = chunkSize;
+    }
+
+    /**
+     * 报告写入该文件后调用{@link #begin()}
+     */
+    public File getPackageFile() {
+        return mPackageFile;
+    }
+
+    /**
+     * 读取已有的进度，并确认报告与进度一致
+     *
+     * @return 可以续传时返回true
+     */
+    public boolean resume() {
+        if (!mPackageFile.exists() || !mCheckpointFile.exists()) {
+            return false;
+        }
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(mCheckpointFile);
+            byte[] data = new byte[256];
+            int count = in.read(data);
+            if (count <= 0) {
+                return false;
+            }
+            String[] fields = new String(data, 0, count).trim().split(" ");
+            if (fields.length != 6 || !VERSION.equals(fields[0])) {
+                return false;
+            }
+            mLength = Long.parseLong(fields[1]);
+            mCrc = Long.parseLong(fields[2]);
+            int chunkSize = Integer.parseInt(fields[3]);
+            mAcked = Long.parseLong(fields[4]);
+            mUploadId = fields[5];
+            // 已确认的位置必须落在分块边界上，否则按新的分块大小无法继续
+            if (chunkSize != mChunkSize || mAcked < 0 || mAcked > mLength || (mAcked % mChunkSize != 0 && mAcked != mLength)) {
+                return false;
+            }
+            return mPackageFile.length() == mLength && computeCrc(mPackageFile) == mCrc;
+        } catch (Exception e) {
+            if (AppEnv.ISAPPDEBUG) {
+                e.printStackTrace();
+            }
+            return false;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (Exception e) {
+                    //ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * 报告写入{@link #getPackageFile()}后建立新的进度
+     */
+    public boolean begin() {
+        try {
+            mLength = mPackageFile.length();
+            mCrc = computeCrc(mPackageFile);
+            mAcked = 0;
+            mUploadId = Long.toHexString(mCrc) + Long.toHexString(System.currentTimeMillis());
+            return saveCheckpoint();
+        } catch (Exception e) {
+            if (AppEnv.ISAPPDEBUG) {
+                e.printStackTrace();
+            }
+            return false;
+        }
+    }
+
+    public long getAckedLength() {
+        return mAcked;
+    }
+
+    /**
+     * 从最后确认的位置继续上传，全部确认后删除报告和进度文件
+     *
+     * @param uploader  分块上传者
+     * @param crashHash CrashHash
+     * @return 0表示全部上传成功，否则为失败分块的返回值
+     */
+    public long upload(ICrashInterface.IChunkUploader uploader, String crashHash) {
+        if (mLength > 0 && mAcked >= mLength) {
+            // 上次最后一个分块已经确认，只是没来得及删除文件，不再发送长度为0的分块
+            delete();
+            return 0;
+        }
+        RandomAccessFile in = null;
+        try {
+            in = new RandomAccessFile(mPackageFile, "r");
+            byte[] buffer = new byte[mChunkSize];
+            CRC32 crc = new CRC32();
+            // 空报告也发送一个长度为0的分块，让服务端知道上传结束
+            do {
+                int length = (int) Math.min(mChunkSize, mLength - mAcked);
+                in.seek(mAcked);
+                in.readFully(buffer, 0, length);
+                crc.reset();
+                crc.update(buffer, 0, length);
+                boolean last = mAcked + length >= mLength;
+                ICrashInterface.ChunkRequest request = new ICrashInterface.ChunkRequest(mUploadId, crashHash, mLength, mAcked,
+                        (int) (mAcked / mChunkSize), Long.toHexString(crc.getValue()), last);
+                long result = uploader.doUploadChunk(request, buffer, 0, length);
+                if (result != 0) {
+                    return result;
+                }
+                mAcked += length;
+                saveCheckpoint();
+            } while (mAcked < mLength);
+        } catch (Exception e) {
+            if (AppEnv.ISAPPDEBUG) {
+                e.printStackTrace();
+            }
+            return -99;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (Exception e) {
+                    //ignore
+                }
+            }
+        }
+        delete();
+        return 0;
+    }
+
+    public void delete() {
+        mPackageFile.delete();
+        mCheckpointFile.delete();
+    }
+
+    /**
+     * 删除目录下过期的报告和进度文件，对应的崩溃目录可能已经被删除
+     */
+    public static void prune(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (File file : files) {
+            String name = file.getName();
+            if ((name.endsWith(PACKAGE_SUFFIX) || name.endsWith(CHECKPOINT_SUFFIX)) && Math.abs(now - file.lastModified()) > MAX_PACKAGE_AGE) {
+                file.delete();
+            }
+        }
+    }
+
+    private boolean saveCheckpoint() {
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(mCheckpointFile);
+            out.write((VERSION + " " + mLength + " " + mCrc + " " + mChunkSize + " " + mAcked + " " + mUploadId).getBytes());
+            out.flush();
+            return true;
+        } catch (Exception e) {
+            if (AppEnv.ISAPPDEBUG) {
+                e.printStackTrace();
+            }
+            return false;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (Exception e) {
+                    //ignore
+                }
+            }
+        }
+    }
+
+    private static long computeCrc(File file) throws Exception {
+        CRC32 crc = new CRC32();
+        BufferedInputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+            byte[] buffer = new byte[32 * 1024];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, count);
+            }
+        } finally {
+            in.close();
+        }
+        return crc.getValue();
+    }
+}
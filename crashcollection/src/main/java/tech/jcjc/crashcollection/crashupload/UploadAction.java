@@ -8,14 +8,32 @@ import android.util.Log;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FilenameFilter;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
 
 import tech.jcjc.crashcollection.AppEnv;
 import tech.jcjc.crashcollection.collector.BaseInfoCollector;
+import tech.jcjc.crashcollection.collector.CollectorEngine;
 import tech.jcjc.crashcollection.interfaces.ICrashInterface;
 import tech.jcjc.crashcollection.utils.Base64;
 import tech.jcjc.crashcollection.utils.FileUtils;
@@ -36,12 +54,25 @@ public class UploadAction {
 
     private static final String UPLOAD_FILENAME = "f2u.tmp";
 
+    // 断点续传的报告和进度文件单独存放，prune只清理该目录
+    private static final String RESUMABLE_PATH = "crash_resumable";
+
     private static final int MAX_FILE_SIZE = 1024 * 1024 * 2;
 
     private static final int MAX_DIR_SIZE = 1024 * 1024 * 5;
 
+    private static final int STREAM_BUFFER_SIZE = 32 * 1024;
+
+    // 与BaseInfoCollector的输出对应
+    private static final String SUMMARY_SECTION = "[INFO]";
+
+    private static final int MAX_SUMMARY_LINES = 256;
+
     private final String mFileToUpload;
 
+    // 多个上传并行时每个UploadAction使用不同的临时文件
+    private static final AtomicInteger sSequence = new AtomicInteger();
+
     private final Context mContext;
 
     private static final String CRASH_KEY = "CrashDump";
@@ -57,15 +88,14 @@ public class UploadAction {
         crashInterface = c;
         File folder = mContext.getFileStreamPath(TEMP_PATH);
         if (FileUtils.makeSurePathExists(folder)) {
-            mFileToUpload = FileUtils.pathAppend(folder.getAbsolutePath(), UPLOAD_FILENAME);
+            mFileToUpload = FileUtils.pathAppend(folder.getAbsolutePath(), UPLOAD_FILENAME) + "." + sSequence.incrementAndGet();
         } else {
-            mFileToUpload = mContext.getFileStreamPath(TEMP_FILENAME).getAbsolutePath();
+            mFileToUpload = mContext.getFileStreamPath(TEMP_FILENAME).getAbsolutePath() + "." + sSequence.incrementAndGet();
         }
     }
 
     public int StartZipAndUploadByFileName(File dirToBeZip, Map<String, String> exts) {
         long errorCode = 0;
-        File file2upload = null;
         try {
             File uploadDir = new File(dirToBeZip.getAbsolutePath());
             if (uploadDir != null && uploadDir.isDirectory() && uploadDir.list(new FilenameFilter() {
@@ -137,37 +167,13 @@ public class UploadAction {
                 FilenameFilter hashFileOutFilter = new FilenameFilter() {
                     @Override
                     public boolean accept(File dir, String name) {
-                        return !name.endsWith(BaseInfoCollector.CRASH_HASH_TMP_FILE_SUF);
+                        return !name.endsWith(BaseInfoCollector.CRASH_HASH_TMP_FILE_SUF) && !name.endsWith(CollectorEngine.PART_FILE_SUF);
                     }
                 };
-                String[] fileList = uploadDir.list(hashFileOutFilter);
+                File[] fileList = uploadDir.listFiles(hashFileOutFilter);
                 
                 if (fileList != null && fileList.length >= 1) {
-                    try {
-                        file2upload = new File(mFileToUpload);
-                        file2upload.delete();
-                        ZipUtil.SizeLimitZipResult zret = ZipUtil.ZipDir(dirToBeZip, file2upload, MAX_FILE_SIZE, MAX_DIR_SIZE, hashFileOutFilter);
-                        if (zret == ZipUtil.SizeLimitZipResult.SizeLimitZipResult_OK && file2upload.exists()) {
-                            String obfuscatedKey = crashInterface.getEncryptKey();
-                            // 需要加密
-                            if (obfuscatedKey != null && !"".equals(obfuscatedKey)) {
-                                String key = deObfuscateKey(obfuscatedKey);
-
-                                File encryptedFile = new File(mFileToUpload + "_encrypted");
-                                
-                                if (SecurityUtil.AES_encrypt(file2upload, key, encryptedFile)) {
-                                    file2upload.delete();
-                                    file2upload = encryptedFile;
-                                } else {
-                                    // 加密错误
-                                    return -99;
-                                }
-                            }
-                            return (int) uploadDataToFileServer(crashHash, file2upload);
-                        }
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
+                    return (int) uploadReport(crashHash, ZipUtil.fileSource(fileList), exts, uploadDir.getName());
                 }
                 
             }
@@ -177,10 +183,6 @@ public class UploadAction {
             if (AppEnv.ISAPPDEBUG) {
                 Log.e(TAG, "", e);
             }
-        } finally {
-            if (file2upload != null) {
-                file2upload.delete();
-            }
         }
 
         return -99;
@@ -188,6 +190,92 @@ public class UploadAction {
     }
 
 
+    /**
+     * 直接上传记录存储中的一条记录，按文件在seg中的位置读取，不还原为目录
+     *
+     * @param store 记录存储，调用方在上传期间持有存储的锁，记录不会被压缩或删除
+     * @param entry 记录
+     * @param exts  附加参数
+     * @return 0表示成功
+     */
+    public int StartZipAndUploadByRecord(CrashRecordStore store, CrashRecordStore.Entry entry, Map<String, String> exts) {
+        try {
+            ZipUtil.ZipSource record = store.openRecord(entry);
+            if (record == null) {
+                return -99;
+            }
+            ZipUtil.ZipSource source = new FilteredSource(record);
+            if (indexOf(source, CRASH_INFO_FILE) < 0) {
+                // 与按目录上传一致，没有crash_report的报告不上传
+                return 0;
+            }
+            String crashHash = entry.crashHash != null ? entry.crashHash.trim() : "";
+            if ("".equals(crashHash) || source.getCount() < 1) {
+                return -99;
+            }
+            // 与重试队列一样按时间和CrashHash标识报告，序号在压缩存储后会变化，不能用于续传
+            return (int) uploadReport(crashHash, source, exts, String.valueOf(entry.timestamp));
+        } catch (Exception e) {
+            if (AppEnv.ISAPPDEBUG) {
+                Log.e(TAG, "", e);
+            }
+        }
+        return -99;
+    }
+
+    /**
+     * 去掉CrashHash标记文件和收集器的临时文件，与按目录上传时的过滤相同
+     */
+    private static class FilteredSource implements ZipUtil.ZipSource {
+        private final ZipUtil.ZipSource mSource;
+
+        private final int[] mIndexes;
+
+        private final int mCount;
+
+        FilteredSource(ZipUtil.ZipSource source) {
+            mSource = source;
+            mIndexes = new int[source.getCount()];
+            int count = 0;
+            for (int i = 0; i < source.getCount(); i++) {
+                String name = source.getName(i);
+                if (!name.endsWith(BaseInfoCollector.CRASH_HASH_TMP_FILE_SUF) && !name.endsWith(CollectorEngine.PART_FILE_SUF)) {
+                    mIndexes[count++] = i;
+                }
+            }
+            mCount = count;
+        }
+
+        @Override
+        public int getCount() {
+            return mCount;
+        }
+
+        @Override
+        public String getName(int index) {
+            return mSource.getName(mIndexes[index]);
+        }
+
+        @Override
+        public long getLength(int index) {
+            return mSource.getLength(mIndexes[index]);
+        }
+
+        @Override
+        public InputStream open(int index) throws IOException {
+            return mSource.open(mIndexes[index]);
+        }
+    }
+
+    private static int indexOf(ZipUtil.ZipSource source, String name) {
+        for (int i = 0; i < source.getCount(); i++) {
+            if (name.equals(source.getName(i))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
     private static final String XOR_SRC = "C3l7SSEAtAqBGsLaRLABn28a28BIMD7gT9jl3dINWos2pxqyeznLKpynIwf801Ha0Cv8o94UlQlIBIa7NXazZ3wB3NFsGfrTIDSimOr35gXVi7CZkDFca99loQdLP3OW20stwWgyZyPvnCFoqYwzLaCWZeeuGDyZrMMlg33TXkhowRifWIBY1aI0ElpqwkQFiPAE8KGWJP05F99vJikb6XK7Uiz9LOwZzCwJNTFh5MdX4HQJiKhiTezkNFx268IaWgcdj8jTq6CboxIAUWe8diyDvNDqRju94mqpdvUfODKFdPQStmwC8H8oBmSXOYbqTCyaUtU9vmgl070n5ApqLqQ0u34mbSOrHtmCep05wZd6rJ9LPiTr94SNJNODq9t5HBn0S4UGakw3THLx2oQROYCNUToRaOoBNy8JGDdVU5WIbZ1tHlpEKLxHNvjxY0FYnfshIlrArnMG2wDdubCAj385QklKo977uI1uLjWscpvoSNPUB9PZEO5ibn6H6kYl";
     private static final byte[] XOR_SRC_BUF = XOR_SRC.getBytes();
     private static final String MIX = "bSnNz94hok3GI4Ug2m7s";
@@ -209,6 +297,289 @@ public class UploadAction {
     }
 
 
+    /**
+     * 边压缩加密边上传，报告在单独的线程中写入管道，上传者从管道读取。
+     * 没有流式上传者时通过{@link FileUploaderAdapter}按文件上传
+     *
+     * @param crashHash  CrashHash
+     * @param files      待上传的文件
+     * @param exts       附加参数
+     * @param reportName 报告名，崩溃目录名或记录的时间
+     * @return 0表示成功
+     */
+    private long uploadReport(String crashHash, ZipUtil.ZipSource files, Map<String, String> exts, String reportName) {
+        // 边压缩边上传时压缩结果要到上传结束后才知道，先按文件长度判断，与原来一致，有文件超出大小限制的报告不上传
+        if (ZipUtil.checkSizeLimit(files, MAX_FILE_SIZE, MAX_DIR_SIZE) != ZipUtil.SizeLimitZipResult.SizeLimitZipResult_OK) {
+            return 0;
+        }
+
+        if (crashInterface instanceof ICrashInterface.IChunkUploaderProvider) {
+            ICrashInterface.IChunkUploader chunkUploader = ((ICrashInterface.IChunkUploaderProvider) crashInterface).getChunkUploader();
+            if (chunkUploader != null) {
+                return uploadResumable(chunkUploader, crashHash, files, reportName);
+            }
+        }
+
+        ICrashInterface.IStreamUploader uploader = null;
+        if (crashInterface instanceof ICrashInterface.IStreamUploaderProvider) {
+            uploader = ((ICrashInterface.IStreamUploaderProvider) crashInterface).getStreamUploader();
+        }
+        if (uploader == null) {
+            ICrashInterface.IUploader fileUploader = crashInterface.getUploader();
+            if (fileUploader == null) {
+                return -1;
+            }
+            uploader = new FileUploaderAdapter(fileUploader, new File(mFileToUpload));
+        }
+
+        Map<String, String> summary = readSummary(files);
+        int crashType = -1;
+        try {
+            crashType = Integer.parseInt(summary.get("CRASH_TYPE"));
+        } catch (Exception e) {
+            //ignore
+        }
+        ICrashInterface.UploadRequest request = new ICrashInterface.UploadRequest(crashType, crashHash,
+                Collections.unmodifiableMap(summary), exts, -1);
+
+        ReportPipe pipe;
+        try {
+            pipe = new ReportPipe(files);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return -99;
+        }
+        pipe.start();
+        long result;
+        try {
+            result = uploader.doUpload(request, pipe.getBody());
+        } finally {
+            // 上传者没有读完时让写入线程尽快结束
+            pipe.closeBody();
+            try {
+                pipe.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+        if (pipe.getError() != null) {
+            // 压缩或加密错误
+            return -99;
+        }
+        if (pipe.getZipResult() != ZipUtil.SizeLimitZipResult.SizeLimitZipResult_OK) {
+            // 上传过程中文件被修改导致超出限制，报告已经发出，按原来的处理不再上传
+            return 0;
+        }
+        return result;
+    }
+
+    /**
+     * 分块上传，准备好的报告和进度保存在临时目录中，上次中断时从最后确认的分块继续，不再重新压缩加密
+     *
+     * @param uploader  分块上传者
+     * @param crashHash  CrashHash
+     * @param files      待上传的文件
+     * @param reportName 报告名，和CrashHash一起标识一份报告
+     * @return 0表示成功
+     */
+    private long uploadResumable(ICrashInterface.IChunkUploader uploader, String crashHash, ZipUtil.ZipSource files, String reportName) {
+        File packageDir = mContext.getFileStreamPath(RESUMABLE_PATH);
+        if (!FileUtils.makeSurePathExists(packageDir)) {
+            return -99;
+        }
+        ResumableUpload.prune(packageDir);
+        ResumableUpload upload = new ResumableUpload(packageDir, crashHash + "_" + reportName, ResumableUpload.DEFAULT_CHUNK_SIZE);
+        if (upload.resume()) {
+            if (AppEnv.ISAPPDEBUG) {
+                Log.d(TAG, "resume upload " + reportName + " from " + upload.getAckedLength());
+            }
+        } else {
+            upload.delete();
+            try {
+                ZipUtil.SizeLimitZipResult zret = writeReport(files,
+                        new BufferedOutputStream(new FileOutputStream(upload.getPackageFile()), STREAM_BUFFER_SIZE));
+                if (zret != ZipUtil.SizeLimitZipResult.SizeLimitZipResult_OK) {
+                    // 与原来一致，有文件超出大小限制的报告不上传
+                    upload.delete();
+                    return 0;
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+                upload.delete();
+                // 压缩或加密错误
+                return -99;
+            }
+            if (!upload.begin()) {
+                upload.delete();
+                return -99;
+            }
+        }
+        return upload.upload(uploader, crashHash);
+    }
+
+    /**
+     * 读取crash_report中[INFO]部分的单行字段
+     */
+    private static Map<String, String> readSummary(ZipUtil.ZipSource files) {
+        Map<String, String> summary = new HashMap<String, String>();
+        int index = indexOf(files, CRASH_INFO_FILE);
+        if (index < 0) {
+            return summary;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(files.open(index)));
+            boolean inSection = false;
+            String line;
+            int lineCount = 0;
+            while ((line = reader.readLine()) != null && lineCount++ < MAX_SUMMARY_LINES) {
+                if (line.startsWith("[")) {
+                    if (inSection) {
+                        break;
+                    }
+                    inSection = SUMMARY_SECTION.equals(line.trim());
+                    continue;
+                }
+                int eq = line.indexOf('=');
+                if (!inSection || eq <= 0) {
+                    continue;
+                }
+                String value = line.substring(eq + 1);
+                if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+                    value = value.substring(1, value.length() - 1);
+                } else if (value.startsWith("\"")) {
+                    // 跨行的值不放入摘要
+                    continue;
+                }
+                summary.put(line.substring(0, eq), value);
+            }
+        } catch (Exception e) {
+            if (AppEnv.ISAPPDEBUG) {
+                e.printStackTrace();
+            }
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (Exception e) {
+                    //ignore
+                }
+            }
+        }
+        return summary;
+    }
+
+    /**
+     * 在单独的线程中把报告压缩加密后写入管道，出错时上传者在读到结尾时得到IOException
+     */
+    private class ReportPipe extends Thread {
+        private final ZipUtil.ZipSource mFiles;
+
+        private final PipedOutputStream mSink = new PipedOutputStream();
+
+        private final PipedInputStream mSource;
+
+        private final InputStream mBody;
+
+        private volatile Exception mError;
+
+        private volatile ZipUtil.SizeLimitZipResult mZipResult;
+
+        ReportPipe(ZipUtil.ZipSource files) throws IOException {
+            super("CrashReportWriter");
+            setDaemon(true);
+            mFiles = files;
+            mSource = new PipedInputStream(mSink, STREAM_BUFFER_SIZE);
+            mBody = new FilterInputStream(mSource) {
+                @Override
+                public int read() throws IOException {
+                    return checkEnd(super.read());
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    return checkEnd(super.read(b, off, len));
+                }
+            };
+        }
+
+        private int checkEnd(int result) throws IOException {
+            if (result == -1 && mError != null) {
+                throw new IOException("write report failed", mError);
+            }
+            return result;
+        }
+
+        InputStream getBody() {
+            return mBody;
+        }
+
+        void closeBody() {
+            try {
+                mSource.close();
+            } catch (IOException e) {
+                //ignore
+            }
+        }
+
+        Exception getError() {
+            return mError;
+        }
+
+        ZipUtil.SizeLimitZipResult getZipResult() {
+            return mZipResult;
+        }
+
+        @Override
+        public void run() {
+            // 先记录错误再关闭管道，保证上传者读到结尾时能看到错误
+            OutputStream out = new FilterOutputStream(mSink) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    flush();
+                }
+            };
+            try {
+                mZipResult = writeReport(mFiles, out);
+            } catch (Exception e) {
+                mError = e;
+            } finally {
+                try {
+                    mSink.close();
+                } catch (IOException e) {
+                    //ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * 把文件压缩后写入sink，需要加密时在压缩流和sink之间插入加密流。每个文件只读取一次，完成后sink被关闭
+     *
+     * @param files 待压缩的文件
+     * @param sink  输出流
+     * @return 压缩结果
+     */
+    private ZipUtil.SizeLimitZipResult writeReport(ZipUtil.ZipSource files, OutputStream sink) throws Exception {
+        OutputStream out = sink;
+        try {
+            String obfuscatedKey = crashInterface.getEncryptKey();
+            // 需要加密
+            if (obfuscatedKey != null && !"".equals(obfuscatedKey)) {
+                out = SecurityUtil.AES_encryptStream(sink, deObfuscateKey(obfuscatedKey));
+            }
+        } catch (Exception e) {
+            sink.close();
+            throw e;
+        }
+        return ZipUtil.zipWithSizeLimit(files, out, MAX_FILE_SIZE, MAX_DIR_SIZE);
+    }
+
     /**
      * 根据传入的文件列表，进行压缩上传
      *
@@ -246,20 +617,17 @@ public class UploadAction {
                 jsonString.put("file", base64Encode(summaryFileData));
 
                 try {
-                    File file2Upload = new File(mFileToUpload);
-                    file2Upload.delete();
-
                     File[] files = new File[fileList.size()];
                     for (int i = 0; i < fileList.size(); i++) {
                         files[i] = fileList.get(i);
                     }
 
-                    ZipUtil.SizeLimitZipResult zipResult = ZipUtil.zipFileListGzip(files, file2Upload, MAX_FILE_SIZE, MAX_DIR_SIZE);
+                    // 数据最终要放进JSON，直接在内存中zip再gzip，不经过临时文件
+                    ByteArrayOutputStream data = new ByteArrayOutputStream();
+                    ZipUtil.SizeLimitZipResult zipResult = ZipUtil.zipFileArrayWithSizeLimit(files, new GZIPOutputStream(data, STREAM_BUFFER_SIZE), MAX_FILE_SIZE, MAX_DIR_SIZE);
 
-                    if (zipResult == ZipUtil.SizeLimitZipResult.SizeLimitZipResult_OK && file2Upload.exists()) {
-                        byte[] dataFile = FileUtils.readFileByte(file2Upload);
-                        file2Upload.delete();
-                        jsonString.put("data", base64Encode(dataFile));
+                    if (zipResult == ZipUtil.SizeLimitZipResult.SizeLimitZipResult_OK) {
+                        jsonString.put("data", base64Encode(data.toByteArray()));
                     }
                 } catch (Exception e) {
                     if (AppEnv.ISAPPDEBUG) {
@@ -0,0 +1,217 @@
+package tech.jcjc.crashcollection.crashupload;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import tech.jcjc.crashcollection.AppEnv;
+
+/**
+ * 上传失败的崩溃报告的重试队列，保存在崩溃目录的上一级，进程重启后仍然有效。
+ * <p>
+ * 每行一个报告："失败次数 下次允许上传的时间 最后一次的错误码 报告路径"。
+ * 第n次失败后等待min(BASE_DELAY * 2^(n-1), MAX_DELAY)，再随机取其一半到全部，避免大量设备在服务恢复后同时重试。
+ * 非线程安全的部分由synchronized保护，跨进程由上传时的crash_upload锁保证只有一个写入者。
+ */
+public class UploadRetryQueue {
+    private static final long BASE_DELAY = 60 * 1000L;
+
+    private static final long MAX_DELAY = 6 * 3600 * 1000L;
+
+    // 超过该时间没有再失败的记录删除，对应的目录此时也已经被清理
+    private static final long MAX_RECORD_AGE = 30 * 24 * 3600 * 1000L;
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File mFile;
+
+    private final Map<String, Record> mRecords = new HashMap<String, Record>();
+
+    private final Random mRandom = new Random();
+
+    private boolean mDirty;
+
+    private static class Record {
+        int attempts;
+
+        long nextTime;
+
+        long lastError;
+
+        Record(int attempts, long nextTime, long lastError) {
+            this.attempts = attempts;
+            this.nextTime = nextTime;
+            this.lastError = lastError;
+        }
+    }
+
+    public UploadRetryQueue(File file) {
+        mFile = file;
+    }
+
+    /**
+     * 重新读取队列，每次上传开始时调用，获取其他进程的修改
+     */
+    public synchronized void load() {
+        mRecords.clear();
+        mDirty = false;
+        if (!mFile.exists()) {
+            return;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(mFile)));
+            long now = System.currentTimeMillis();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(" ", 4);
+                if (fields.length != 4) {
+                    continue;
+                }
+                Record record = new Record(Integer.parseInt(fields[0]), Long.parseLong(fields[1]), Long.parseLong(fields[2]));
+                if (Math.abs(now - record.nextTime) > MAX_RECORD_AGE || !reportExists(fields[3])) {
+                    mDirty = true;
+                    continue;
+                }
+                mRecords.put(fields[3], record);
+            }
+        } catch (Exception e) {
+            if (AppEnv.ISAPPDEBUG) {
+                e.printStackTrace();
+            }
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (Exception e) {
+                    //ignore
+                }
+            }
+        }
+    }
+
+    /* 报告已经不存在的记录不再重试，记录存储中的报告为"存储文件#记录"，只检查存储文件 */
+    private static boolean reportExists(String key) {
+        int pos = key.indexOf('#');
+        return new File(pos >= 0 ? key.substring(0, pos) : key).exists();
+    }
+
+    /**
+     * 有修改时保存，先写临时文件再改名
+     */
+    public synchronized void save() {
+        if (!mDirty) {
+            return;
+        }
+        File tempFile = new File(mFile.getPath() + TEMP_SUFFIX);
+        FileOutputStream out = null;
+        try {
+            if (mRecords.isEmpty()) {
+                mFile.delete();
+                mDirty = false;
+                return;
+            }
+            StringBuilder sb = new StringBuilder();
+            for (Map.Entry<String, Record> entry : mRecords.entrySet()) {
+                Record record = entry.getValue();
+                sb.append(record.attempts).append(' ').append(record.nextTime).append(' ').append(record.lastError)
+                        .append(' ').append(entry.getKey()).append('\n');
+            }
+            out = new FileOutputStream(tempFile);
+            out.write(sb.toString().getBytes());
+            out.flush();
+            out.close();
+            out = null;
+            if (tempFile.renameTo(mFile)) {
+                mDirty = false;
+            }
+        } catch (Exception e) {
+            if (AppEnv.ISAPPDEBUG) {
+                e.printStackTrace();
+            }
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (Exception e) {
+                    //ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * @param report 报告路径
+     * @return 是否已经过了退避时间，可以上传
+     */
+    public synchronized boolean isEligible(File report) {
+        Record record = mRecords.get(report.getAbsolutePath());
+        return record == null || record.nextTime <= System.currentTimeMillis();
+    }
+
+    /**
+     * 上传成功或报告被删除
+     */
+    public synchronized void remove(File report) {
+        if (mRecords.remove(report.getAbsolutePath()) != null) {
+            mDirty = true;
+        }
+    }
+
+    /**
+     * 报告换了位置(例如被打包进记录存储)，保留已有的失败记录
+     */
+    public synchronized void move(File from, File to) {
+        Record record = mRecords.remove(from.getAbsolutePath());
+        if (record != null) {
+            mRecords.put(to.getAbsolutePath(), record);
+            mDirty = true;
+        }
+    }
+
+    /**
+     * 上传失败，按失败次数计算下次允许上传的时间
+     *
+     * @param report    报告路径
+     * @param errorCode 上传返回的错误码
+     */
+    public synchronized void onFailure(File report, long errorCode) {
+        String key = report.getAbsolutePath();
+        Record record = mRecords.get(key);
+        if (record == null) {
+            record = new Record(0, 0, 0);
+            mRecords.put(key, record);
+        }
+        record.attempts++;
+        long delay = BASE_DELAY << Math.min(record.attempts - 1, 30);
+        if (delay <= 0 || delay > MAX_DELAY) {
+            delay = MAX_DELAY;
+        }
+        // 取[delay/2, delay)之间的随机值
+        delay = delay / 2 + (long) (mRandom.nextDouble() * (delay / 2));
+        record.nextTime = System.currentTimeMillis() + delay;
+        record.lastError = errorCode;
+        mDirty = true;
+    }
+
+    /**
+     * @return 最早的下次允许上传的时间，至少在BASE_DELAY之后，避免已到期但本次没有上传的记录导致立即反复重试；队列为空时返回-1
+     */
+    public synchronized long getNextRetryTime() {
+        long next = -1;
+        for (Record record : mRecords.values()) {
+            if (next < 0 || record.nextTime < next) {
+                next = record.nextTime;
+            }
+        }
+        if (next < 0) {
+            return -1;
+        }
+        return Math.max(next, System.currentTimeMillis() + BASE_DELAY);
+    }
+}
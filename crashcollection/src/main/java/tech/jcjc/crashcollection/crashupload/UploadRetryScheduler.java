@@ -0,0 +1,81 @@
+package tech.jcjc.crashcollection.crashupload;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 在后台线程中按重试队列的时间重新上传。多次请求合并为一次，只保留最早的时间，
+ * 同一时刻最多只有一个等待中的任务
+ */
+public class UploadRetryScheduler {
+    private final ScheduledExecutorService mExecutor;
+
+    private final Runnable mTask;
+
+    private ScheduledFuture<?> mPending;
+
+    private long mPendingTime;
+
+    /**
+     * @param task 到时间后执行的上传任务，在后台线程中执行
+     */
+    public UploadRetryScheduler(Runnable task) {
+        mTask = task;
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "CrashUploadRetry");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        mExecutor = executor;
+    }
+
+    /**
+     * 请求在指定时间执行一次上传，已有更早或相同时间的请求时忽略
+     *
+     * @param time 绝对时间(System.currentTimeMillis)
+     */
+    public synchronized void schedule(long time) {
+        if (mPending != null && mPendingTime <= time) {
+            return;
+        }
+        if (mPending != null) {
+            mPending.cancel(false);
+        }
+        mPendingTime = time;
+        try {
+            mPending = mExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    // 先清除标记，任务执行中可以安排下一次
+                    synchronized (UploadRetryScheduler.this) {
+                        mPending = null;
+                    }
+                    mTask.run();
+                }
+            }, Math.max(time - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            // 已经shutdown
+            mPending = null;
+        }
+    }
+
+    public synchronized void cancel() {
+        if (mPending != null) {
+            mPending.cancel(false);
+            mPending = null;
+        }
+    }
+
+    public void shutdown() {
+        cancel();
+        mExecutor.shutdownNow();
+    }
+}
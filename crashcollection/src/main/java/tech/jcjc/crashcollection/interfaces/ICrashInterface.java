@@ -2,6 +2,7 @@
 package tech.jcjc.crashcollection.interfaces;
 
 import java.io.File;
+import java.io.InputStream;
 import java.util.Map;
 
 public interface ICrashInterface {
@@ -14,6 +15,150 @@ public interface ICrashInterface {
         long doUpload(String crashHash, File file);
     }
 
+    /**
+     * 流式上传，报告一边压缩加密一边交给上传者，不需要先在磁盘上生成完整的文件
+     */
+    interface IStreamUploader {
+        /**
+         * @param request 报告的信息
+         * @param body    压缩加密后的报告内容，读到结尾表示报告完整；生成报告出错时在结尾抛出IOException，此时上传应视为失败
+         * @return 0表示成功
+         */
+        long doUpload(UploadRequest request, InputStream body);
+    }
+
+    /**
+     * 分块上传，准备好的报告保存在磁盘上，按固定大小分块发送，中断后从最后一个确认的分块继续
+     */
+    interface IChunkUploader {
+        /**
+         * @param request 分块的信息
+         * @param data    分块数据
+         * @param offset  data中的起始位置
+         * @param length  分块长度
+         * @return 0表示服务端已确认收到该分块
+         */
+        long doUploadChunk(ChunkRequest request, byte[] data, int offset, int length);
+    }
+
+    /**
+     * 可选接口，ICrashInterface的实现同时实现该接口时生效
+     */
+    interface IStreamUploaderProvider {
+        /**
+         * 获取一个 {@link IStreamUploader}对象用来流式上传报告
+         * @return 返回null表示使用{@link ICrashInterface#getUploader()}按文件上传
+         */
+        IStreamUploader getStreamUploader();
+    }
+
+    /**
+     * 可选接口，ICrashInterface的实现同时实现该接口时生效
+     */
+    interface IChunkUploaderProvider {
+        /**
+         * 获取一个 {@link IChunkUploader}对象用来分块上传报告，优先于{@link IStreamUploaderProvider#getStreamUploader()}
+         * @return 返回null表示不使用分块上传
+         */
+        IChunkUploader getChunkUploader();
+    }
+
+    /**
+     * 一个分块对应的信息，同一报告的各分块uploadId相同
+     */
+    class ChunkRequest {
+        public final String uploadId;
+
+        public final String crashHash;
+
+        // 报告的总字节数
+        public final long totalLength;
+
+        // 分块在报告中的位置
+        public final long chunkOffset;
+
+        public final int chunkIndex;
+
+        // 分块数据的CRC32，16进制
+        public final String checksum;
+
+        public final boolean last;
+
+        public ChunkRequest(String uploadId, String crashHash, long totalLength, long chunkOffset, int chunkIndex, String checksum, boolean last) {
+            this.uploadId = uploadId;
+            this.crashHash = crashHash;
+            this.totalLength = totalLength;
+            this.chunkOffset = chunkOffset;
+            this.chunkIndex = chunkIndex;
+            this.checksum = checksum;
+            this.last = last;
+        }
+    }
+
+    /**
+     * 一次流式上传对应的报告信息
+     */
+    class UploadRequest {
+        // 崩溃类型，无法得知时为-1
+        public final int crashType;
+
+        public final String crashHash;
+
+        // crash_report中[INFO]部分的单行字段
+        public final Map<String, String> summary;
+
+        // 调用checkUploadCrashFile时传入的附加参数，可能为null
+        public final Map<String, String> params;
+
+        // 报告的字节数，边生成边上传时为-1，需要按chunked方式上传
+        public final long contentLength;
+
+        public UploadRequest(int crashType, String crashHash, Map<String, String> summary, Map<String, String> params, long contentLength) {
+            this.crashType = crashType;
+            this.crashHash = crashHash;
+            this.summary = summary;
+            this.params = params;
+            this.contentLength = contentLength;
+        }
+    }
+
+    /**
+     * 可选接口，ICrashInterface的实现同时实现该接口时生效
+     */
+    interface IIgnorePackageProvider {
+        /**
+         * 获取额外的包名前缀，匹配这些前缀的栈帧和默认的框架包名一样，不参与LAST_CALL和CRASH_HASH的计算
+         * @return 返回null表示只使用默认列表
+         */
+        String[] getIgnorePackagePrefixes();
+    }
+
+    /**
+     * 可选接口，ICrashInterface的实现同时实现该接口时生效
+     */
+    interface IRateLimitProvider {
+        /**
+         * 获取崩溃报告的频率限制，超出限制的崩溃不生成报告，只记录次数，在下一份报告的SUPPRESSED中体现
+         * @param type 崩溃类型
+         * @return 返回null表示不限制
+         */
+        RateLimitPolicy getRateLimitPolicy(int type);
+    }
+
+    /**
+     * 同一CRASH_HASH生成报告的频率限制：最多连续生成burst份报告，之后每隔refillInterval毫秒恢复一份
+     */
+    class RateLimitPolicy {
+        public final int burst;
+
+        public final long refillInterval;
+
+        public RateLimitPolicy(int burst, long refillInterval) {
+            this.burst = burst;
+            this.refillInterval = refillInterval;
+        }
+    }
+
     String getVersion();
 
     String getProduct();
@@ -0,0 +1,194 @@
+package tech.jcjc.crashcollection.utils;
+
+import android.content.Context;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+
+import tech.jcjc.crashcollection.AppEnv;
+
+/**
+ * 按CRASH_HASH限制崩溃报告的生成频率，每个hash对应一个持久化的令牌桶，进程重启后仍然有效。
+ * <p>
+ * 每个hash在目录下保存一个文件，内容为"剩余令牌数 上次补充时间 被抑制的次数"。
+ * 令牌用完后本次崩溃不生成报告，只累加被抑制的次数，下一次允许生成报告时一并返回。
+ * 读写状态文件时持有进程锁，写入时先写临时文件再改名，进程在写入过程中被杀死不会重置令牌桶。
+ */
+public class CrashRateLimiter {
+    // 超过该时间没有更新的状态文件在初始化时删除
+    private static final long EXPIRE_TIME = 7L * 24 * 60 * 60 * 1000;
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final String LOCK_NAME = "crash_rate";
+
+    // 崩溃处理中获取进程锁最多等待LOCK_RETRY_TIME * LOCK_RETRY_PERIOD毫秒，拿不到锁时不限制
+    private static final int LOCK_RETRY_TIME = 10;
+
+    private static final int LOCK_RETRY_PERIOD = 10;
+
+    private final Context mContext;
+
+    private final File mDir;
+
+    private final long[] mState = new long[3];
+
+    private static final int STATE_TOKENS = 0;
+
+    private static final int STATE_LAST_REFILL = 1;
+
+    private static final int STATE_SUPPRESSED = 2;
+
+    /**
+     * @param context 用于创建进程锁，为null时只在进程内互斥
+     * @param dir     状态文件所在目录
+     */
+    public CrashRateLimiter(Context context, File dir) {
+        mContext = context;
+        mDir = dir;
+        prune();
+    }
+
+    /**
+     * 尝试为一次崩溃领取令牌
+     *
+     * @param crashHash      崩溃的hash
+     * @param burst          令牌桶容量，即连续允许生成报告的次数
+     * @param refillInterval 每补充一个令牌的时间(ms)
+     * @return 允许生成报告时返回此前被抑制的次数(>=0)，不允许时返回-1
+     */
+    public synchronized int tryAcquire(String crashHash, int burst, long refillInterval) {
+        if (burst <= 0 || refillInterval <= 0) {
+            return 0;
+        }
+        // 锁文件在释放后不删除，否则等待旧文件的进程和新建文件的进程会同时持有锁
+        ProcessLock pl = mContext != null ? new ProcessLock(mContext, LOCK_NAME, false) : null;
+        if (pl != null && !pl.tryLock(LOCK_RETRY_TIME, LOCK_RETRY_PERIOD, false)) {
+            return 0;
+        }
+        try {
+            File file = new File(mDir, crashHash);
+            long now = System.currentTimeMillis();
+            if (!readState(file)) {
+                mState[STATE_TOKENS] = burst;
+                mState[STATE_LAST_REFILL] = now;
+                mState[STATE_SUPPRESSED] = 0;
+            }
+
+            long elapsed = now - mState[STATE_LAST_REFILL];
+            if (elapsed < 0) {
+                // 系统时间被调整过，重新计时
+                mState[STATE_LAST_REFILL] = now;
+            } else if (elapsed >= refillInterval) {
+                long refill = elapsed / refillInterval;
+                mState[STATE_TOKENS] = Math.min(burst, mState[STATE_TOKENS] + refill);
+                mState[STATE_LAST_REFILL] += refill * refillInterval;
+            }
+
+            int result;
+            if (mState[STATE_TOKENS] > 0) {
+                mState[STATE_TOKENS]--;
+                result = (int) Math.min(mState[STATE_SUPPRESSED], Integer.MAX_VALUE);
+                mState[STATE_SUPPRESSED] = 0;
+            } else {
+                mState[STATE_SUPPRESSED]++;
+                result = -1;
+            }
+            writeState(file);
+            return result;
+        } catch (Exception e) {
+            if (AppEnv.ISAPPDEBUG) {
+                e.printStackTrace();
+            }
+            return 0;
+        } finally {
+            if (pl != null) {
+                pl.freeLock();
+            }
+        }
+    }
+
+    private boolean readState(File file) {
+        if (!file.exists()) {
+            return false;
+        }
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            byte[] data = new byte[64];
+            int length = in.read(data);
+            int index = 0;
+            long value = 0;
+            boolean inNumber = false;
+            for (int i = 0; i < length && index < mState.length; i++) {
+                byte b = data[i];
+                if (b >= '0' && b <= '9') {
+                    value = value * 10 + (b - '0');
+                    inNumber = true;
+                } else if (inNumber) {
+                    mState[index++] = value;
+                    value = 0;
+                    inNumber = false;
+                }
+            }
+            if (inNumber && index < mState.length) {
+                mState[index++] = value;
+            }
+            return index == mState.length;
+        } catch (Exception e) {
+            return false;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (Exception e) {
+                    //ignore
+                }
+            }
+        }
+    }
+
+    private void writeState(File file) {
+        if (!mDir.exists()) {
+            mDir.mkdirs();
+        }
+        File tempFile = new File(file.getPath() + TEMP_SUFFIX);
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tempFile);
+            out.write((mState[STATE_TOKENS] + " " + mState[STATE_LAST_REFILL] + " " + mState[STATE_SUPPRESSED]).getBytes());
+            out.flush();
+            out.close();
+            out = null;
+            if (!tempFile.renameTo(file)) {
+                tempFile.delete();
+            }
+        } catch (Exception e) {
+            if (AppEnv.ISAPPDEBUG) {
+                e.printStackTrace();
+            }
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (Exception e) {
+                    //ignore
+                }
+            }
+        }
+    }
+
+    private void prune() {
+        File[] files = mDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (File file : files) {
+            if (now - file.lastModified() > EXPIRE_TIME) {
+                file.delete();
+            }
+        }
+    }
+}
@@ -245,6 +245,50 @@ public class FileUtils {
         return result;
     }
 
+    /**
+     * 将srcFile的内容追加到destFile末尾
+     *
+     * @param srcFile  源文件
+     * @param destFile 目标文件，不存在时创建
+     * @return 是否成功
+     */
+    public static boolean appendFile(File srcFile, File destFile) {
+        boolean result = false;
+        if (srcFile != null && srcFile.exists()) {
+            InputStream in = null;
+            OutputStream out = null;
+            try {
+                in = new FileInputStream(srcFile);
+                out = new FileOutputStream(destFile, true);
+                byte[] buffer = new byte[4096];
+                int bytesRead;
+                while ((bytesRead = in.read(buffer)) >= 0) {
+                    out.write(buffer, 0, bytesRead);
+                }
+                out.flush();
+                result = true;
+            } catch (Exception e) {
+                result = false;
+            } finally {
+                if (in != null) {
+                    try {
+                        in.close();
+                    } catch (Exception e) {
+                        //ignore
+                    }
+                }
+                if (out != null) {
+                    try {
+                        out.close();
+                    } catch (Exception e) {
+                        result = false;
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
     /**
      * 删除目录以及子目录
      *
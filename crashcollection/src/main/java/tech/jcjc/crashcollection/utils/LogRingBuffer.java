@@ -0,0 +1,104 @@
+package tech.jcjc.crashcollection.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 固定大小的无锁日志环形缓冲区，只保留最近的capacity条记录。
+ * <p>
+ * 写入时通过AtomicLong领取一个序号，把不可变的记录放入序号对应的槽位，多个线程同时写入也不需要加锁；
+ * 读取时按序号遍历，槽位中的记录序号不符说明已被覆盖或尚未写完，直接跳过。
+ */
+public class LogRingBuffer {
+    /**
+     * 一条日志记录，创建后不再修改
+     */
+    public static class Entry {
+        public final long sequence;
+
+        public final long timeMillis;
+
+        public final int pid;
+
+        public final int tid;
+
+        public final int priority;
+
+        public final String tag;
+
+        public final String message;
+
+        Entry(long sequence, long timeMillis, int pid, int tid, int priority, String tag, String message) {
+            this.sequence = sequence;
+            this.timeMillis = timeMillis;
+            this.pid = pid;
+            this.tid = tid;
+            this.priority = priority;
+            this.tag = tag;
+            this.message = message;
+        }
+    }
+
+    /**
+     * 遍历记录的回调
+     */
+    public interface Visitor {
+        void visit(Entry entry);
+    }
+
+    private final AtomicReferenceArray<Entry> mSlots;
+
+    private final int mMask;
+
+    private final AtomicLong mCursor = new AtomicLong();
+
+    /**
+     * @param capacity 最多保留的记录数，向上取整到2的幂
+     */
+    public LogRingBuffer(int capacity) {
+        int size = 1;
+        while (size < capacity && size < (1 << 30)) {
+            size <<= 1;
+        }
+        mSlots = new AtomicReferenceArray<Entry>(size);
+        mMask = size - 1;
+    }
+
+    public int getCapacity() {
+        return mMask + 1;
+    }
+
+    /**
+     * @return 累计写入过的记录数，包括已被覆盖的
+     */
+    public long getTotalCount() {
+        return mCursor.get();
+    }
+
+    public void add(int pid, int tid, int priority, String tag, String message) {
+        long sequence = mCursor.getAndIncrement();
+        mSlots.set((int) (sequence & mMask), new Entry(sequence, System.currentTimeMillis(), pid, tid, priority, tag, message));
+    }
+
+    /**
+     * 按写入顺序遍历最近的记录
+     *
+     * @param limit   最多遍历的条数
+     * @param visitor 回调
+     * @return 实际遍历的条数
+     */
+    public int visit(int limit, Visitor visitor) {
+        long end = mCursor.get();
+        long start = Math.max(0, end - Math.min(limit, getCapacity()));
+        int count = 0;
+        for (long sequence = start; sequence < end; sequence++) {
+            Entry entry = mSlots.get((int) (sequence & mMask));
+            if (entry == null || entry.sequence != sequence) {
+                continue;
+            }
+            visitor.visit(entry);
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,73 @@
+package tech.jcjc.crashcollection.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 前缀匹配器，把前缀列表编译成去掉冗余项后的有序数组，匹配时二分查找，不产生临时对象。
+ * <p>
+ * 去掉被其他前缀覆盖的项后，列表中不存在互为前缀的两项，此时若某个前缀p是s的前缀，
+ * 则p一定是数组中不大于s的最大项，所以只需检查二分查找到的那一项。
+ */
+public class PrefixMatcher {
+    private final String[] mPrefixes;
+
+    public PrefixMatcher(String[]... prefixLists) {
+        List<String> all = new ArrayList<String>();
+        for (String[] prefixes : prefixLists) {
+            if (prefixes == null) {
+                continue;
+            }
+            for (String prefix : prefixes) {
+                if (prefix != null) {
+                    all.add(prefix);
+                }
+            }
+        }
+        String[] sorted = all.toArray(new String[all.size()]);
+        Arrays.sort(sorted);
+
+        // 排序后，被覆盖的项紧跟在覆盖它的前缀后面
+        List<String> compact = new ArrayList<String>();
+        String last = null;
+        for (String prefix : sorted) {
+            if (last != null && prefix.startsWith(last)) {
+                continue;
+            }
+            compact.add(prefix);
+            last = prefix;
+        }
+        mPrefixes = compact.toArray(new String[compact.size()]);
+    }
+
+    /**
+     * @param s 待匹配的字符串
+     * @return s是否以任意一个前缀开头
+     */
+    public boolean matches(String s) {
+        if (s == null) {
+            return false;
+        }
+        int low = 0;
+        int high = mPrefixes.length - 1;
+        int floor = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = mPrefixes[mid].compareTo(s);
+            if (cmp == 0) {
+                return true;
+            } else if (cmp < 0) {
+                floor = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return floor >= 0 && s.startsWith(mPrefixes[floor]);
+    }
+
+    public String[] getPrefixes() {
+        return mPrefixes.clone();
+    }
+}
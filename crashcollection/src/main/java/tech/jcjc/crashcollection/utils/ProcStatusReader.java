@@ -0,0 +1,119 @@
+package tech.jcjc.crashcollection.utils;
+
+import java.io.RandomAccessFile;
+
+/**
+ * 读取/proc/self/status，文件句柄和缓冲区都复用，每次刷新只有一次seek和read，不产生临时对象。
+ * 非线程安全。
+ */
+public class ProcStatusReader {
+    private static final String PROC_SELF_STATUS = "/proc/self/status";
+
+    private final byte[] mBuffer;
+
+    private int mLength;
+
+    private RandomAccessFile mFile;
+
+    public ProcStatusReader() {
+        this(4096);
+    }
+
+    public ProcStatusReader(int bufferSize) {
+        mBuffer = new byte[bufferSize];
+    }
+
+    /**
+     * 重新读取文件内容
+     *
+     * @return 是否成功
+     */
+    public boolean refresh() {
+        mLength = 0;
+        try {
+            if (mFile == null) {
+                mFile = new RandomAccessFile(PROC_SELF_STATUS, "r");
+            } else {
+                mFile.seek(0);
+            }
+            int count;
+            while (mLength < mBuffer.length && (count = mFile.read(mBuffer, mLength, mBuffer.length - mLength)) > 0) {
+                mLength += count;
+            }
+            return mLength > 0;
+        } catch (Exception e) {
+            close();
+            return false;
+        }
+    }
+
+    /**
+     * 获取最近一次读取的内容中某一项的数值，如"VmRSS:   1234 kB"返回1234
+     *
+     * @param key 名称，不含冒号
+     * @return 不存在时返回-1
+     */
+    public long getValue(String key) {
+        int keyLength = key.length();
+        int lineStart = 0;
+        while (lineStart < mLength) {
+            if (matches(lineStart, key) && lineStart + keyLength < mLength && mBuffer[lineStart + keyLength] == ':') {
+                return parseNumber(lineStart + keyLength + 1);
+            }
+            while (lineStart < mLength && mBuffer[lineStart] != '\n') {
+                lineStart++;
+            }
+            lineStart++;
+        }
+        return -1;
+    }
+
+    /**
+     * @return 底层数组，有效内容为[0, getLength())
+     */
+    public byte[] getData() {
+        return mBuffer;
+    }
+
+    public int getLength() {
+        return mLength;
+    }
+
+    public void close() {
+        if (mFile != null) {
+            try {
+                mFile.close();
+            } catch (Exception e) {
+                //ignore
+            }
+            mFile = null;
+        }
+    }
+
+    private boolean matches(int offset, String key) {
+        int keyLength = key.length();
+        if (offset + keyLength > mLength) {
+            return false;
+        }
+        for (int i = 0; i < keyLength; i++) {
+            if (mBuffer[offset + i] != key.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long parseNumber(int offset) {
+        while (offset < mLength && (mBuffer[offset] == ' ' || mBuffer[offset] == '\t')) {
+            offset++;
+        }
+        long value = 0;
+        boolean found = false;
+        while (offset < mLength && mBuffer[offset] >= '0' && mBuffer[offset] <= '9') {
+            value = value * 10 + (mBuffer[offset] - '0');
+            offset++;
+            found = true;
+        }
+        return found ? value : -1;
+    }
+}
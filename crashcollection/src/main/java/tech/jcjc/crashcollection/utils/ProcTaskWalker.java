@@ -0,0 +1,127 @@
+package tech.jcjc.crashcollection.utils;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+/**
+ * 遍历/proc/self/task，输出本进程每个线程的tid、状态、CPU时间、wchan和线程名，替代fork一个ps进程。
+ * <p>
+ * 各文件读入复用的缓冲区后直接按字节解析，结果写入有容量上限的{@link ReservedBuffer}。非线程安全。
+ */
+public class ProcTaskWalker {
+    private static final String PROC_SELF_TASK = "/proc/self/task/";
+
+    // UTIME和STIME的单位是clock tick
+    private static final String HEADER = "TID STATE UTIME STIME WCHAN NAME";
+
+    // stat中state之后的第11、12项为utime、stime
+    private static final int FIELD_UTIME = 11;
+
+    private static final int FIELD_STIME = 12;
+
+    private final byte[] mStatBuffer = new byte[1024];
+
+    private final byte[] mWchanBuffer = new byte[128];
+
+    private final int[] mFieldStart = new int[FIELD_STIME + 1];
+
+    private final int[] mFieldEnd = new int[FIELD_STIME + 1];
+
+    /**
+     * @param out 输出缓冲区，超出容量的线程被丢弃
+     * @return 输出的线程数，/proc/self/task不可读时返回-1
+     */
+    public int dump(ReservedBuffer out) {
+        String[] tids = new File(PROC_SELF_TASK).list();
+        if (tids == null) {
+            return -1;
+        }
+        out.append(HEADER).newLine();
+        int count = 0;
+        for (String tid : tids) {
+            if (out.isOverflow()) {
+                break;
+            }
+            int statLength = read(PROC_SELF_TASK + tid + "/stat", mStatBuffer);
+            if (statLength <= 0) {
+                continue;
+            }
+            int wchanLength = read(PROC_SELF_TASK + tid + "/wchan", mWchanBuffer);
+            if (appendTask(out, statLength, wchanLength)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /*
+     * stat的格式为"tid (comm) state ppid ..."，comm中可能含有空格和括号，所以从最后一个')'之后开始按空格切分
+     */
+    private boolean appendTask(ReservedBuffer out, int statLength, int wchanLength) {
+        int commStart = -1;
+        int commEnd = -1;
+        for (int i = 0; i < statLength; i++) {
+            if (mStatBuffer[i] == '(' && commStart < 0) {
+                commStart = i;
+            } else if (mStatBuffer[i] == ')') {
+                commEnd = i;
+            }
+        }
+        if (commStart <= 0 || commEnd < commStart) {
+            return false;
+        }
+
+        int field = 0;
+        int fieldStart = commEnd + 2;
+        for (int i = fieldStart; i <= statLength && field < mFieldStart.length; i++) {
+            if (i == statLength || mStatBuffer[i] == ' ' || mStatBuffer[i] == '\n') {
+                mFieldStart[field] = fieldStart;
+                mFieldEnd[field] = i;
+                field++;
+                fieldStart = i + 1;
+            }
+        }
+        if (field < mFieldStart.length) {
+            return false;
+        }
+
+        out.append(mStatBuffer, 0, commStart - 1).append(' ');
+        out.append(mStatBuffer, mFieldStart[0], mFieldEnd[0] - mFieldStart[0]).append(' ');
+        out.append(mStatBuffer, mFieldStart[FIELD_UTIME], mFieldEnd[FIELD_UTIME] - mFieldStart[FIELD_UTIME]).append(' ');
+        out.append(mStatBuffer, mFieldStart[FIELD_STIME], mFieldEnd[FIELD_STIME] - mFieldStart[FIELD_STIME]).append(' ');
+        // wchan在新系统上通常不可读或为0
+        while (wchanLength > 0 && (mWchanBuffer[wchanLength - 1] == '\n' || mWchanBuffer[wchanLength - 1] == 0)) {
+            wchanLength--;
+        }
+        if (wchanLength > 0) {
+            out.append(mWchanBuffer, 0, wchanLength);
+        } else {
+            out.append('-');
+        }
+        out.append(' ').append(mStatBuffer, commStart + 1, commEnd - commStart - 1).newLine();
+        return true;
+    }
+
+    private static int read(String path, byte[] buffer) {
+        int length = 0;
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(path, "r");
+            int count;
+            while (length < buffer.length && (count = file.read(buffer, length, buffer.length - length)) > 0) {
+                length += count;
+            }
+            return length;
+        } catch (Exception e) {
+            return -1;
+        } finally {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (Exception e) {
+                    //ignore
+                }
+            }
+        }
+    }
+}
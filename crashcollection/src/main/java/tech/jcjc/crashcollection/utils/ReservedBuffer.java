@@ -0,0 +1,165 @@
+package tech.jcjc.crashcollection.utils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+/**
+ * 预先分配好的字节缓冲区，直接把字符按UTF-8编码写入，不产生中间String，用于OOM等内存紧张时的日志输出。
+ * 超出容量的内容直接丢弃。非线程安全。
+ */
+public class ReservedBuffer {
+    private final byte[] mBuffer;
+
+    private final byte[] mDigits = new byte[20];
+
+    private int mPosition;
+
+    private boolean mOverflow;
+
+    public ReservedBuffer(int capacity) {
+        mBuffer = new byte[capacity];
+    }
+
+    public ReservedBuffer reset() {
+        mPosition = 0;
+        mOverflow = false;
+        return this;
+    }
+
+    public int size() {
+        return mPosition;
+    }
+
+    /**
+     * @return 底层数组，有效内容为[0, size())
+     */
+    public byte[] getData() {
+        return mBuffer;
+    }
+
+    public boolean isOverflow() {
+        return mOverflow;
+    }
+
+    public ReservedBuffer append(CharSequence s) {
+        if (s == null) {
+            return append("null");
+        }
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                if (!ensure(4)) {
+                    break;
+                }
+                mBuffer[mPosition++] = (byte) (0xF0 | (codePoint >> 18));
+                mBuffer[mPosition++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                mBuffer[mPosition++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                mBuffer[mPosition++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else if (!appendChar(c)) {
+                break;
+            }
+        }
+        return this;
+    }
+
+    public ReservedBuffer append(char c) {
+        appendChar(c);
+        return this;
+    }
+
+    public ReservedBuffer append(long value) {
+        if (value == Long.MIN_VALUE) {
+            return append("-9223372036854775808");
+        }
+        if (value < 0) {
+            appendChar('-');
+            value = -value;
+        }
+        int count = 0;
+        do {
+            mDigits[count++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        if (ensure(count)) {
+            while (count > 0) {
+                mBuffer[mPosition++] = mDigits[--count];
+            }
+        }
+        return this;
+    }
+
+    /**
+     * 追加已经编码好的字节，空间不足时整段丢弃
+     */
+    public ReservedBuffer append(byte[] data, int offset, int length) {
+        if (length > 0 && ensure(length)) {
+            System.arraycopy(data, offset, mBuffer, mPosition, length);
+            mPosition += length;
+        }
+        return this;
+    }
+
+    public ReservedBuffer newLine() {
+        return append('\r').append('\n');
+    }
+
+    /**
+     * 将缓冲区内容写入文件
+     *
+     * @param file   目标文件
+     * @param append 是否追加
+     * @return 是否成功
+     */
+    public boolean writeTo(File file, boolean append) {
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(file, append);
+            out.write(mBuffer, 0, mPosition);
+            out.flush();
+            return true;
+        } catch (Throwable e) {
+            return false;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (Exception e) {
+                    //ignore
+                }
+            }
+        }
+    }
+
+    private boolean appendChar(char c) {
+        if (c < 0x80) {
+            if (!ensure(1)) {
+                return false;
+            }
+            mBuffer[mPosition++] = (byte) c;
+        } else if (c < 0x800) {
+            if (!ensure(2)) {
+                return false;
+            }
+            mBuffer[mPosition++] = (byte) (0xC0 | (c >> 6));
+            mBuffer[mPosition++] = (byte) (0x80 | (c & 0x3F));
+        } else {
+            if (!ensure(3)) {
+                return false;
+            }
+            mBuffer[mPosition++] = (byte) (0xE0 | (c >> 12));
+            mBuffer[mPosition++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+            mBuffer[mPosition++] = (byte) (0x80 | (c & 0x3F));
+        }
+        return true;
+    }
+
+    private boolean ensure(int count) {
+        if (mPosition + count > mBuffer.length) {
+            mOverflow = true;
+            return false;
+        }
+        return true;
+    }
+}
@@ -7,9 +7,11 @@ import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.math.BigInteger;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
 import java.security.Key;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -353,6 +355,21 @@ public class SecurityUtil {
     }
     
     
+    /**
+     * 返回一个加密输出流，写入的数据按与{@link #AES_encrypt}相同的方式加密后写入out，关闭时写入最后一个分组并关闭out
+     *
+     * @param out 加密数据的输出流
+     * @param key 密钥，同时作为IV
+     * @return 加密输出流
+     */
+    public static OutputStream AES_encryptStream(OutputStream out, String key) throws GeneralSecurityException {
+        SecretKeySpec keySpec = new SecretKeySpec(key.getBytes(), "AES");
+        Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        IvParameterSpec ivParameterSpec = new IvParameterSpec(key.getBytes());
+        cipher.init(Cipher.ENCRYPT_MODE, keySpec, ivParameterSpec);
+        return new CipherOutputStream(out, cipher);
+    }
+
     public static boolean AES_encrypt(File inFile, String key, File outFile) {
         FileInputStream is = null;
         CipherOutputStream cos = null;
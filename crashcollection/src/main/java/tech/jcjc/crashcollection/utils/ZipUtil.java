@@ -15,6 +15,7 @@ import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 import java.util.zip.ZipEntry;
@@ -37,6 +38,46 @@ public class ZipUtil {
 
     ;
 
+    /**
+     * 待压缩的一组文件，可以是磁盘上的文件，也可以是记录存储中一条记录里的各个文件
+     */
+    public interface ZipSource {
+        int getCount();
+
+        String getName(int index);
+
+        long getLength(int index);
+
+        InputStream open(int index) throws IOException;
+    }
+
+    /**
+     * 磁盘上的文件对应的{@link ZipSource}
+     */
+    public static ZipSource fileSource(final File[] files) {
+        return new ZipSource() {
+            @Override
+            public int getCount() {
+                return files.length;
+            }
+
+            @Override
+            public String getName(int index) {
+                return files[index].getName();
+            }
+
+            @Override
+            public long getLength(int index) {
+                return files[index].length();
+            }
+
+            @Override
+            public InputStream open(int index) throws IOException {
+                return new FileInputStream(files[index]);
+            }
+        };
+    }
+
     /**
      * 用标准zip压缩一个目录
      *
@@ -338,34 +379,114 @@ public class ZipUtil {
      */
     public static SizeLimitZipResult zipFileArrayWithSizeLimit(File[] files, File newZipFile, long fileSizeLimit,
                                                                long totalSizeLimit) throws IOException {
+        if (files == null || files.length <= 0) {
+            return SizeLimitZipResult.SizeLimitZipResult_NotFound;
+        }
+        FileOutputStream fOut = new FileOutputStream(newZipFile);
+        try {
+            return zipFileArrayWithSizeLimit(files, fOut, fileSizeLimit, totalSizeLimit);
+        } finally {
+            fOut.close();
+        }
+    }
+
+    /**
+     * 只按文件长度判断{@link #zipFileArrayWithSizeLimit(File[], OutputStream, long, long)}的结果，不读取文件内容，
+     * 用于在开始压缩上传之前决定是否跳过
+     *
+     * @param files          文件数组
+     * @param fileSizeLimit  单个文件大小
+     * @param totalSizeLimit 总大小
+     * @return 压缩结果
+     */
+    public static SizeLimitZipResult checkSizeLimit(File[] files, long fileSizeLimit, long totalSizeLimit) {
+        if (files == null) {
+            return SizeLimitZipResult.SizeLimitZipResult_NotFound;
+        }
+        return checkSizeLimit(fileSource(files), fileSizeLimit, totalSizeLimit);
+    }
+
+    /**
+     * 与{@link #checkSizeLimit(File[], long, long)}相同，文件来自source
+     */
+    public static SizeLimitZipResult checkSizeLimit(ZipSource source, long fileSizeLimit, long totalSizeLimit) {
+        if (source == null || source.getCount() <= 0) {
+            return SizeLimitZipResult.SizeLimitZipResult_NotFound;
+        }
+        if (totalSizeLimit <= 0 && fileSizeLimit <= 0) {
+            return SizeLimitZipResult.SizeLimitZipResult_OK;
+        }
         SizeLimitZipResult ret = SizeLimitZipResult.SizeLimitZipResult_OK;
+        long currentSize = 0;
+        for (int i = 0; i < source.getCount(); i++) {
+            long fsize = source.getLength(i);
+            if (fsize > fileSizeLimit || currentSize + fsize >= totalSizeLimit) {
+                ret = SizeLimitZipResult.SizeLimitZipResult_TooBig;
+            } else {
+                currentSize += fsize;
+            }
+        }
+        return ret;
+    }
 
-        if (files == null || files.length <= 0) {
-            ret = SizeLimitZipResult.SizeLimitZipResult_NotFound;
-        } else {
-            InputStream input = null;
+    /**
+     * 根据传入的文件数组压缩到输出流中，并对每个文件的大小和总大小有限制。每个文件只读取一次，
+     * 压缩结果直接写入out，不生成中间文件。完成后out被关闭
+     *
+     * @param files          文件数组
+     * @param out            压缩数据的输出流
+     * @param fileSizeLimit  单个文件大小
+     * @param totalSizeLimit 总大小
+     * @return 压缩结果
+     * @throws IOException 可能抛出的异常
+     */
+    public static SizeLimitZipResult zipFileArrayWithSizeLimit(File[] files, OutputStream out, long fileSizeLimit,
+                                                               long totalSizeLimit) throws IOException {
+        if (files == null) {
+            out.close();
+            return SizeLimitZipResult.SizeLimitZipResult_NotFound;
+        }
+        return zipWithSizeLimit(fileSource(files), out, fileSizeLimit, totalSizeLimit);
+    }
 
-            ZipOutputStream zipOut = null;
-            FileOutputStream fOut = new FileOutputStream(newZipFile);
-            zipOut = new ZipOutputStream(fOut);
+    /**
+     * 与{@link #zipFileArrayWithSizeLimit(File[], OutputStream, long, long)}相同，文件来自source
+     *
+     * @param source         待压缩的文件
+     * @param out            压缩数据的输出流
+     * @param fileSizeLimit  单个文件大小
+     * @param totalSizeLimit 总大小
+     * @return 压缩结果
+     * @throws IOException 可能抛出的异常
+     */
+    public static SizeLimitZipResult zipWithSizeLimit(ZipSource source, OutputStream out, long fileSizeLimit,
+                                                      long totalSizeLimit) throws IOException {
+        SizeLimitZipResult ret = SizeLimitZipResult.SizeLimitZipResult_OK;
+
+        if (source == null || source.getCount() <= 0) {
+            out.close();
+            return SizeLimitZipResult.SizeLimitZipResult_NotFound;
+        }
+        int count = source.getCount();
 
+        ZipOutputStream zipOut = new ZipOutputStream(out);
+        try {
             StringBuilder sb = null;
             boolean needSizeLimit = totalSizeLimit > 0 || fileSizeLimit > 0;
 
             if (needSizeLimit) {
                 sb = new StringBuilder();
             }
-            int currentSize = 0;
-            // 设置文件输入流
+            long currentSize = 0;
+            byte[] buf = new byte[BUFF_SIZE];
             // 每一个被压缩的文件都用ZipEntry表示，需要为每一个压缩后的文件设置
             // 过滤掉超出大小上限的文件。将文件摘要记录到Zip的Common里面。
-            for (int i = 0; i < files.length; i++) {
-                File currentFile = files[i];
-                input = new FileInputStream(currentFile);
+            for (int i = 0; i < count; i++) {
+                String name = source.getName(i);
                 if (needSizeLimit) {
-                    int fsize = input.available();
-                    sb.append("[").append(i).append("/").append(files.length).append("]");
-                    sb.append(currentFile.getName());
+                    long fsize = source.getLength(i);
+                    sb.append("[").append(i).append("/").append(count).append("]");
+                    sb.append(name);
                     sb.append("(").append(fsize).append(")");
 
                     if (fsize > fileSizeLimit) { // 单个文件超出大小
@@ -384,15 +505,18 @@ public class ZipUtil {
                     }
                 }
 
-                zipOut.putNextEntry(new ZipEntry(currentFile.getName()));
-                int readLen = 0;
-                // 接收输入的数据
-                byte[] buf = new byte[1024];
-                while ((readLen = input.read(buf, 0, 1024)) != -1) {
-                    zipOut.write(buf, 0, readLen);
+                InputStream input = source.open(i);
+                try {
+                    zipOut.putNextEntry(new ZipEntry(name));
+                    int readLen;
+                    // 接收输入的数据
+                    while ((readLen = input.read(buf, 0, buf.length)) != -1) {
+                        zipOut.write(buf, 0, readLen);
+                    }
+                    zipOut.closeEntry();
+                } finally {
+                    input.close();
                 }
-                zipOut.closeEntry();
-                input.close();
             }
             if (needSizeLimit) {
                 if (currentSize == 0) { // 如果由于过滤了大文件，一个文件也没有压缩的话写个注释文件进去
@@ -405,8 +529,8 @@ public class ZipUtil {
                     Log.i(TAG, "cm:" + sb.toString());
                 }
             }
+        } finally {
             zipOut.close();
-            fOut.close();
         }
 
         return ret;
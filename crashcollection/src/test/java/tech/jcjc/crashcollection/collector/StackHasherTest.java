@@ -0,0 +1,161 @@
+package tech.jcjc.crashcollection.collector;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.security.MessageDigest;
+
+import tech.jcjc.crashcollection.utils.ByteConvertor;
+
+import static org.junit.Assert.*;
+
+/**
+ * StackHasher与原来逐帧拼接字符串再做MD5的实现结果必须一致，否则升级后同一个崩溃的CRASH_HASH会变化
+ */
+public class StackHasherTest {
+    // 与StackInfoCollector.MAX_STACK_TRACE_LIMIT相同
+    private static final int MAX_COUNT = 50;
+
+    private StackHasher mHasher;
+
+    @Before
+    public void setUp() throws Exception {
+        mHasher = new StackHasher();
+    }
+
+    /**
+     * 原来的实现，Android默认字符集为UTF-8
+     */
+    private static String legacyHash(Throwable ex, int maxCount) throws Exception {
+        Throwable cause = ex;
+        int count = 0;
+        MessageDigest mdAll = MessageDigest.getInstance("MD5");
+        MessageDigest mdSafe = MessageDigest.getInstance("MD5");
+        boolean bHasMobilesafe = false;
+
+        do {
+            for (StackTraceElement stack : cause.getStackTrace()) {
+                String hashString = stack.getClassName() + stack.getMethodName();
+                if (!StackInfoCollector.isIgnoreList(stack.getClassName())) {
+                    bHasMobilesafe = true;
+                    hashString += stack.getLineNumber();
+                    mdSafe.update(hashString.getBytes("UTF-8"));
+                }
+                count++;
+                mdAll.update(hashString.getBytes("UTF-8"));
+            }
+
+            if (count >= maxCount) {
+                break;
+            }
+            cause = cause.getCause();
+        } while (cause != null && cause != ex);
+
+        MessageDigest mdDigest = bHasMobilesafe ? mdSafe : mdAll;
+        return ByteConvertor.bytesToHexString(mdDigest.digest()).toUpperCase();
+    }
+
+    private static Throwable newThrowable(Throwable cause, StackTraceElement... stacks) {
+        Throwable t = new RuntimeException("test", cause);
+        t.setStackTrace(stacks);
+        return t;
+    }
+
+    private static StackTraceElement frame(String className, String methodName, int line) {
+        return new StackTraceElement(className, methodName, "Test.java", line);
+    }
+
+    private void assertSameAsLegacy(Throwable t) throws Exception {
+        assertEquals(legacyHash(t, MAX_COUNT), mHasher.hash(t, MAX_COUNT));
+    }
+
+    @Test
+    public void lineNumbers() throws Exception {
+        Throwable a = newThrowable(null,
+                frame("tech.jcjc.demo.Foo", "bar", 12),
+                frame("android.os.Handler", "dispatchMessage", 99),
+                frame("tech.jcjc.demo.Foo", "nativeCall", -2),
+                frame("tech.jcjc.demo.Foo", "unknown", -1),
+                frame("tech.jcjc.demo.Foo", "max", Integer.MAX_VALUE),
+                frame("tech.jcjc.demo.Foo", "min", Integer.MIN_VALUE));
+        assertSameAsLegacy(a);
+
+        // 本地代码行号变化时hash变化，系统代码行号变化时不变
+        Throwable b = newThrowable(null,
+                frame("tech.jcjc.demo.Foo", "bar", 13),
+                frame("android.os.Handler", "dispatchMessage", 99),
+                frame("tech.jcjc.demo.Foo", "nativeCall", -2),
+                frame("tech.jcjc.demo.Foo", "unknown", -1),
+                frame("tech.jcjc.demo.Foo", "max", Integer.MAX_VALUE),
+                frame("tech.jcjc.demo.Foo", "min", Integer.MIN_VALUE));
+        Throwable c = newThrowable(null,
+                frame("tech.jcjc.demo.Foo", "bar", 12),
+                frame("android.os.Handler", "dispatchMessage", 100),
+                frame("tech.jcjc.demo.Foo", "nativeCall", -2),
+                frame("tech.jcjc.demo.Foo", "unknown", -1),
+                frame("tech.jcjc.demo.Foo", "max", Integer.MAX_VALUE),
+                frame("tech.jcjc.demo.Foo", "min", Integer.MIN_VALUE));
+        assertNotEquals(mHasher.hash(a, MAX_COUNT), mHasher.hash(b, MAX_COUNT));
+        assertEquals(mHasher.hash(a, MAX_COUNT), mHasher.hash(c, MAX_COUNT));
+    }
+
+    @Test
+    public void onlyIgnoredFrames() throws Exception {
+        Throwable t = newThrowable(null,
+                frame("java.lang.Thread", "run", 10),
+                frame("android.os.Looper", "loop", 20));
+        assertSameAsLegacy(t);
+    }
+
+    @Test
+    public void nonAscii() throws Exception {
+        // 两字节、三字节和四字节(代理对)的UTF-8编码
+        Throwable t = newThrowable(null,
+                frame("tech.jcjc.démo.Ünïcode", "ñame", 1),
+                frame("tech.jcjc.示例.崩溃", "处理", 2),
+                frame("tech.jcjc.emoji.😀", "💥run", 3),
+                frame("android.视图.View", "绘制", 4));
+        assertSameAsLegacy(t);
+    }
+
+    @Test
+    public void loneSurrogates() throws Exception {
+        Throwable t = newThrowable(null,
+                frame("tech.jcjc.a\uD800b", "m\uDC00", 1),
+                frame("tech.jcjc.end\uD83D", "\uDE00start", 2),
+                frame("tech.jcjc.reversed\uDE00\uD83D", "x", 3),
+                frame("android.a\uDBFF", "\uD800𐀀", 4));
+        assertSameAsLegacy(t);
+    }
+
+    @Test
+    public void causesAndLimit() throws Exception {
+        StackTraceElement[] stacks = new StackTraceElement[30];
+        for (int i = 0; i < stacks.length; i++) {
+            stacks[i] = frame(i % 3 == 0 ? "android.app.Activity" : "tech.jcjc.demo.Deep" + i, "call" + i, i);
+        }
+        Throwable root = newThrowable(null, stacks);
+        Throwable middle = newThrowable(root, frame("tech.jcjc.demo.Middle", "wrap", 5));
+        Throwable top = newThrowable(middle, stacks);
+        // 第二个cause之后超过MAX_COUNT，root不再参与计算
+        assertSameAsLegacy(top);
+        assertSameAsLegacy(newThrowable(middle, frame("tech.jcjc.demo.Top", "top", 1)));
+    }
+
+    @Test
+    public void longNames() throws Exception {
+        StringBuilder sb = new StringBuilder("tech.jcjc.");
+        for (int i = 0; i < 200; i++) {
+            sb.append("长名");
+        }
+        assertSameAsLegacy(newThrowable(null, frame(sb.toString(), sb.toString(), 7)));
+        // 扩容后的缓冲区继续复用
+        assertSameAsLegacy(newThrowable(null, frame("tech.jcjc.demo.Foo", "bar", 1)));
+    }
+
+    @Test
+    public void matchesGetThrowableHashCode() throws Exception {
+        Throwable t = newThrowable(null, frame("tech.jcjc.demo.Foo", "bar", 42));
+        assertEquals(legacyHash(t, MAX_COUNT), StackInfoCollector.getThrowableHashCode(t));
+    }
+}
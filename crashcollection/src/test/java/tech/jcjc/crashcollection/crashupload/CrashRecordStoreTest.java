@@ -0,0 +1,287 @@
+package tech.jcjc.crashcollection.crashupload;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.List;
+
+import tech.jcjc.crashcollection.utils.ZipUtil;
+
+import static org.junit.Assert.*;
+
+/**
+ * CrashRecordStore的打包还原、索引重建和压缩
+ */
+public class CrashRecordStoreTest {
+    private File mRoot;
+
+    private File mStoreDir;
+
+    @Before
+    public void setUp() throws Exception {
+        mRoot = File.createTempFile("record_store", "");
+        mRoot.delete();
+        mRoot.mkdirs();
+        mStoreDir = new File(mRoot, "store");
+    }
+
+    @After
+    public void tearDown() {
+        deleteAll(mRoot);
+    }
+
+    private static void deleteAll(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteAll(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static void write(File file, String content) throws Exception {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String read(File file) throws Exception {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            byte[] data = new byte[(int) file.length()];
+            int pos = 0;
+            while (pos < data.length) {
+                pos += in.read(data, pos, data.length - pos);
+            }
+            return new String(data, "UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    private File makeCrashDir(String name, String report) throws Exception {
+        File dir = new File(mRoot, name);
+        dir.mkdirs();
+        write(new File(dir, "crash_report"), report);
+        write(new File(dir, "logcat.txt"), "log of " + name);
+        return dir;
+    }
+
+    @Test
+    public void appendAndExtract() throws Exception {
+        CrashRecordStore store = new CrashRecordStore(mStoreDir);
+        assertTrue(store.listPending().isEmpty());
+        assertTrue(store.append(makeCrashDir("1000", "report 1"), "0123456789ABCDEF0123456789ABCDEF", 1000, 0));
+        assertTrue(store.append(makeCrashDir("2000", "报告 2"), "HASH2", 2000, 1));
+
+        List<CrashRecordStore.Entry> pending = store.listPending();
+        assertEquals(2, pending.size());
+        assertEquals("0123456789ABCDEF0123456789ABCDEF", pending.get(0).crashHash);
+        assertEquals(1000, pending.get(0).timestamp);
+        assertEquals(0, pending.get(0).type);
+        assertEquals("HASH2", pending.get(1).crashHash);
+        assertEquals(1, pending.get(1).type);
+
+        File dest = new File(mRoot, "out");
+        assertTrue(store.extract(pending.get(1), dest));
+        assertEquals("报告 2", read(new File(dest, "crash_report")));
+        assertEquals("log of 2000", read(new File(dest, "logcat.txt")));
+    }
+
+    private static String read(InputStream in) throws Exception {
+        try {
+            java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+            byte[] buffer = new byte[3];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            return new String(out.toByteArray(), "UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void openRecordReadsInPlace() throws Exception {
+        CrashRecordStore store = new CrashRecordStore(mStoreDir);
+        store.append(makeCrashDir("1000", "report 1"), "A", 1000, 0);
+        store.append(makeCrashDir("2000", "报告 2"), "B", 2000, 0);
+        List<CrashRecordStore.Entry> pending = store.listPending();
+
+        ZipUtil.ZipSource source = store.openRecord(pending.get(1));
+        assertNotNull(source);
+        assertEquals(2, source.getCount());
+        for (int i = 0; i < source.getCount(); i++) {
+            // 每个文件只读到自己的结尾，不会读到相邻文件或下一条记录
+            String content = read(source.open(i));
+            assertEquals(source.getLength(i), content.getBytes("UTF-8").length);
+            if ("crash_report".equals(source.getName(i))) {
+                assertEquals("报告 2", content);
+            } else {
+                assertEquals("logcat.txt", source.getName(i));
+                assertEquals("log of 2000", content);
+            }
+        }
+
+        // 已处理的记录不能再读取
+        store.markDone(pending.get(1));
+        assertNull(store.openRecord(pending.get(1)));
+        assertNotNull(store.openRecord(pending.get(0)));
+    }
+
+    @Test
+    public void rebuildKeepsDoneState() throws Exception {
+        CrashRecordStore store = new CrashRecordStore(mStoreDir);
+        store.append(makeCrashDir("1000", "a"), "A", 1000, 0);
+        store.append(makeCrashDir("2000", "b"), "B", 2000, 0);
+        store.append(makeCrashDir("3000", "c"), "C", 3000, 0);
+        store.markDone(store.listPending().get(1));
+
+        // 索引丢失后从seg重建，已上传的记录不能再次变为未处理
+        assertTrue(new File(mStoreDir, "crash_records.idx").delete());
+        List<CrashRecordStore.Entry> pending = new CrashRecordStore(mStoreDir).listPending();
+        assertEquals(2, pending.size());
+        assertEquals("A", pending.get(0).crashHash);
+        assertEquals("C", pending.get(1).crashHash);
+    }
+
+    @Test
+    public void rebuildTruncatesBrokenTail() throws Exception {
+        CrashRecordStore store = new CrashRecordStore(mStoreDir);
+        store.append(makeCrashDir("1000", "a"), "A", 1000, 0);
+        File segment = new File(mStoreDir, "crash_records.seg");
+        long length = segment.length();
+        FileOutputStream out = new FileOutputStream(segment, true);
+        out.write(new byte[]{0x43, 0x52, 0x45, 0x43, 0, 0, 1});
+        out.close();
+        new File(mStoreDir, "crash_records.idx").delete();
+
+        List<CrashRecordStore.Entry> pending = new CrashRecordStore(mStoreDir).listPending();
+        assertEquals(1, pending.size());
+        assertEquals(length, segment.length());
+    }
+
+    @Test
+    public void appendAfterIndexLost() throws Exception {
+        CrashRecordStore store = new CrashRecordStore(mStoreDir);
+        store.append(makeCrashDir("1000", "a"), "A", 1000, 0);
+        store.append(makeCrashDir("2000", "b"), "B", 2000, 0);
+        store.markDone(store.listPending().get(0));
+
+        // 压缩过程中进程被杀死时只剩下没有索引的seg
+        assertTrue(new File(mStoreDir, "crash_records.idx").delete());
+        store = new CrashRecordStore(mStoreDir);
+        assertTrue(store.append(makeCrashDir("3000", "c"), "C", 3000, 0));
+
+        List<CrashRecordStore.Entry> pending = store.listPending();
+        assertEquals(2, pending.size());
+        assertEquals("B", pending.get(0).crashHash);
+        assertEquals("C", pending.get(1).crashHash);
+        File dest = new File(mRoot, "out");
+        assertTrue(store.extract(pending.get(1), dest));
+        assertEquals("c", read(new File(dest, "crash_report")));
+
+        // 压缩不能丢弃索引丢失前的记录
+        store.markDone(pending.get(1));
+        store.compact();
+        pending = store.listPending();
+        assertEquals(1, pending.size());
+        assertEquals("B", pending.get(0).crashHash);
+    }
+
+    @Test
+    public void recordMissingFromIndexRecovered() throws Exception {
+        CrashRecordStore store = new CrashRecordStore(mStoreDir);
+        store.append(makeCrashDir("1000", "a"), "A", 1000, 0);
+        File index = new File(mStoreDir, "crash_records.idx");
+        byte[] oneEntry = readBytes(index);
+        store.append(makeCrashDir("2000", "b"), "B", 2000, 0);
+
+        // 写入seg后、写入索引前进程被杀死，索引只覆盖seg的前一部分
+        FileOutputStream out = new FileOutputStream(index);
+        out.write(oneEntry);
+        out.close();
+        List<CrashRecordStore.Entry> pending = new CrashRecordStore(mStoreDir).listPending();
+        assertEquals(2, pending.size());
+        assertEquals("B", pending.get(1).crashHash);
+    }
+
+    private static byte[] readBytes(File file) throws Exception {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            byte[] data = new byte[(int) file.length()];
+            int pos = 0;
+            while (pos < data.length) {
+                pos += in.read(data, pos, data.length - pos);
+            }
+            return data;
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void compactKeepsPendingRecords() throws Exception {
+        CrashRecordStore store = new CrashRecordStore(mStoreDir);
+        store.append(makeCrashDir("1000", "first report"), "A", 1000, 0);
+        store.append(makeCrashDir("2000", "second report"), "B", 2000, 1);
+        store.append(makeCrashDir("3000", "third report"), "C", 3000, 0);
+        List<CrashRecordStore.Entry> pending = store.listPending();
+        store.markDone(pending.get(0));
+        store.markDone(pending.get(2));
+
+        File segment = new File(mStoreDir, "crash_records.seg");
+        long before = segment.length();
+        store.compact();
+        assertEquals(pending.get(1).length, segment.length());
+        assertTrue(segment.length() < before);
+        assertFalse(new File(mStoreDir, "crash_records.seg.tmp").exists());
+        assertFalse(new File(mStoreDir, "crash_records.idx.tmp").exists());
+
+        List<CrashRecordStore.Entry> compacted = store.listPending();
+        assertEquals(1, compacted.size());
+        CrashRecordStore.Entry entry = compacted.get(0);
+        assertEquals("B", entry.crashHash);
+        assertEquals(2000, entry.timestamp);
+        assertEquals(1, entry.type);
+        assertEquals(0, entry.offset);
+        File dest = new File(mRoot, "out");
+        assertTrue(store.extract(entry, dest));
+        assertEquals("second report", read(new File(dest, "crash_report")));
+
+        // 压缩后新追加的记录紧跟在后面
+        store.append(makeCrashDir("4000", "fourth"), "D", 4000, 0);
+        assertEquals(2, store.listPending().size());
+
+        for (CrashRecordStore.Entry e : store.listPending()) {
+            store.markDone(e);
+        }
+        store.compact();
+        assertFalse(segment.exists());
+        assertFalse(new File(mStoreDir, "crash_records.idx").exists());
+    }
+
+    @Test
+    public void compactSkipsWhenMostlyPending() throws Exception {
+        CrashRecordStore store = new CrashRecordStore(mStoreDir);
+        store.append(makeCrashDir("1000", "a"), "A", 1000, 0);
+        store.append(makeCrashDir("2000", "b"), "B", 2000, 0);
+        store.append(makeCrashDir("3000", "c"), "C", 3000, 0);
+        store.markDone(store.listPending().get(0));
+        File segment = new File(mStoreDir, "crash_records.seg");
+        long before = segment.length();
+        store.compact();
+        assertEquals(before, segment.length());
+        assertEquals(2, store.listPending().size());
+    }
+}
@@ -0,0 +1,256 @@
+package tech.jcjc.crashcollection.crashupload;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import tech.jcjc.crashcollection.interfaces.ICrashInterface;
+
+import static org.junit.Assert.*;
+
+/**
+ * ResumableUpload在分块失败后续传，已确认的分块不再发送，报告或进度不一致时从头开始
+ */
+public class ResumableUploadTest {
+    private static final int CHUNK_SIZE = 1000;
+
+    private File mDir;
+
+    /**
+     * 按调用次数失败的分块上传者，记录服务端收到并确认的数据
+     */
+    private static class FlakyUploader implements ICrashInterface.IChunkUploader {
+        // 第几次调用(从1开始)返回错误码
+        final Set<Integer> failAt = new HashSet<Integer>();
+
+        // 第几次调用(从1开始)抛出异常
+        final Set<Integer> throwAt = new HashSet<Integer>();
+
+        final Set<Long> ackedOffsets = new HashSet<Long>();
+
+        final List<ICrashInterface.ChunkRequest> requests = new ArrayList<ICrashInterface.ChunkRequest>();
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        String uploadId;
+
+        int calls;
+
+        boolean resent;
+
+        @Override
+        public long doUploadChunk(ICrashInterface.ChunkRequest request, byte[] data, int offset, int length) {
+            calls++;
+            requests.add(request);
+            if (throwAt.contains(calls)) {
+                throw new IllegalStateException("network down");
+            }
+            if (failAt.contains(calls)) {
+                return -1;
+            }
+            if (ackedOffsets.contains(request.chunkOffset)) {
+                resent = true;
+            }
+            if (!request.uploadId.equals(uploadId)) {
+                // 新的uploadId表示从头开始
+                uploadId = request.uploadId;
+                body = new ByteArrayOutputStream();
+                ackedOffsets.clear();
+            }
+            assertEquals(body.size(), request.chunkOffset);
+            assertEquals(request.chunkOffset / CHUNK_SIZE, request.chunkIndex);
+            assertEquals(request.chunkOffset + length >= request.totalLength, request.last);
+            CRC32 crc = new CRC32();
+            crc.update(data, offset, length);
+            assertEquals(Long.toHexString(crc.getValue()), request.checksum);
+            body.write(data, offset, length);
+            ackedOffsets.add(request.chunkOffset);
+            return 0;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        mDir = File.createTempFile("resumable", "");
+        mDir.delete();
+        mDir.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static void write(File file, byte[] data) throws Exception {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * 与UploadAction相同的流程：能续传时继续，否则重新写入报告
+     */
+    private static long attempt(File dir, byte[] report, ICrashInterface.IChunkUploader uploader) throws Exception {
+        ResumableUpload upload = new ResumableUpload(dir, "HASH_1000", CHUNK_SIZE);
+        if (!upload.resume()) {
+            upload.delete();
+            write(upload.getPackageFile(), report);
+            assertTrue(upload.begin());
+        }
+        return upload.upload(uploader, "HASH");
+    }
+
+    @Test
+    public void resumesAfterFailures() throws Exception {
+        byte[] report = randomBytes(4500, 1);
+        FlakyUploader uploader = new FlakyUploader();
+        uploader.failAt.add(3);
+        uploader.throwAt.add(5);
+        uploader.failAt.add(6);
+
+        assertEquals(-1, attempt(mDir, report, uploader));
+        assertEquals(2 * CHUNK_SIZE, resumedAcked());
+        assertEquals(-99, attempt(mDir, report, uploader));
+        assertEquals(-1, attempt(mDir, report, uploader));
+        assertEquals(0, attempt(mDir, report, uploader));
+
+        assertArrayEquals(report, uploader.body.toByteArray());
+        assertFalse(uploader.resent);
+        // 5个分块，3次失败
+        assertEquals(8, uploader.calls);
+        // 同一次上传的uploadId不变
+        for (ICrashInterface.ChunkRequest request : uploader.requests) {
+            assertEquals(uploader.uploadId, request.uploadId);
+        }
+        // 全部确认后报告和进度文件被删除
+        assertEquals(0, mDir.list().length);
+    }
+
+    private long resumedAcked() {
+        ResumableUpload upload = new ResumableUpload(mDir, "HASH_1000", CHUNK_SIZE);
+        assertTrue(upload.resume());
+        return upload.getAckedLength();
+    }
+
+    @Test
+    public void changedPackageRestarts() throws Exception {
+        byte[] report = randomBytes(3500, 2);
+        FlakyUploader uploader = new FlakyUploader();
+        uploader.failAt.add(3);
+        assertEquals(-1, attempt(mDir, report, uploader));
+        String firstId = uploader.uploadId;
+
+        // 报告内容被修改，与进度中的CRC不一致
+        ResumableUpload upload = new ResumableUpload(mDir, "HASH_1000", CHUNK_SIZE);
+        byte[] changed = randomBytes(3500, 3);
+        write(upload.getPackageFile(), changed);
+        assertFalse(upload.resume());
+
+        assertEquals(0, attempt(mDir, report, uploader));
+        assertArrayEquals(report, uploader.body.toByteArray());
+        assertNotEquals(firstId, uploader.uploadId);
+        // 重新开始后从0发送
+        assertEquals(0, uploader.requests.get(3).chunkOffset);
+    }
+
+    @Test
+    public void checkpointMismatchRestarts() throws Exception {
+        byte[] report = randomBytes(2500, 4);
+        FlakyUploader uploader = new FlakyUploader();
+        uploader.failAt.add(2);
+        assertEquals(-1, attempt(mDir, report, uploader));
+
+        // 分块大小不同时无法续传
+        assertFalse(new ResumableUpload(mDir, "HASH_1000", CHUNK_SIZE * 2).resume());
+
+        // 进度文件损坏
+        write(new File(mDir, "HASH_1000.ckpt"), "v1 broken".getBytes("UTF-8"));
+        assertFalse(new ResumableUpload(mDir, "HASH_1000", CHUNK_SIZE).resume());
+
+        // 进度文件丢失
+        new File(mDir, "HASH_1000.ckpt").delete();
+        assertFalse(new ResumableUpload(mDir, "HASH_1000", CHUNK_SIZE).resume());
+
+        int before = uploader.requests.size();
+        assertEquals(0, attempt(mDir, report, uploader));
+        assertEquals(0, uploader.requests.get(before).chunkOffset);
+        assertArrayEquals(report, uploader.body.toByteArray());
+    }
+
+    @Test
+    public void emptyPackageSendsLastChunk() throws Exception {
+        FlakyUploader uploader = new FlakyUploader();
+        assertEquals(0, attempt(mDir, new byte[0], uploader));
+        assertEquals(1, uploader.calls);
+        assertTrue(uploader.requests.get(0).last);
+        assertEquals(0, uploader.body.size());
+    }
+
+    @Test
+    public void fullyAckedCheckpointCompletes() throws Exception {
+        byte[] report = randomBytes(2000, 5);
+        FlakyUploader uploader = new FlakyUploader();
+        ResumableUpload upload = new ResumableUpload(mDir, "HASH_1000", CHUNK_SIZE);
+        write(upload.getPackageFile(), report);
+        assertTrue(upload.begin());
+        assertEquals(0, upload.upload(uploader, "HASH"));
+
+        // 最后一个分块确认后、删除文件前进程被杀，留下全部确认的进度
+        write(upload.getPackageFile(), report);
+        write(new File(mDir, "HASH_1000.ckpt"), ("v1 2000 " + crc(report) + " " + CHUNK_SIZE + " 2000 " + uploader.uploadId).getBytes("UTF-8"));
+        assertTrue(new ResumableUpload(mDir, "HASH_1000", CHUNK_SIZE).resume());
+
+        assertEquals(0, attempt(mDir, report, uploader));
+        assertEquals(2, uploader.calls);
+        assertEquals(0, mDir.list().length);
+    }
+
+    private static long crc(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return crc.getValue();
+    }
+
+    @Test
+    public void pruneRemovesOnlyStaleFiles() throws Exception {
+        File stale = new File(mDir, "old.pkg");
+        File fresh = new File(mDir, "new.ckpt");
+        File other = new File(mDir, "other.txt");
+        write(stale, new byte[1]);
+        write(fresh, new byte[1]);
+        write(other, new byte[1]);
+        long old = System.currentTimeMillis() - 8 * 24 * 3600 * 1000L;
+        assertTrue(stale.setLastModified(old));
+        assertTrue(other.setLastModified(old));
+
+        ResumableUpload.prune(mDir);
+        assertFalse(stale.exists());
+        assertTrue(fresh.exists());
+        assertTrue(other.exists());
+    }
+}
@@ -0,0 +1,176 @@
+package tech.jcjc.crashcollection.crashupload;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * UploadRetryQueue的退避时间、保存读取，以及报告不存在时清理记录
+ */
+public class UploadRetryQueueTest {
+    private static final long BASE_DELAY = 60 * 1000L;
+
+    private static final long MAX_DELAY = 6 * 3600 * 1000L;
+
+    private File mRoot;
+
+    private File mQueueFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mRoot = File.createTempFile("retry_queue", "");
+        mRoot.delete();
+        mRoot.mkdirs();
+        mQueueFile = new File(mRoot, "upload_retry");
+    }
+
+    @After
+    public void tearDown() {
+        deleteAll(mRoot);
+    }
+
+    private static void deleteAll(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteAll(child);
+            }
+        }
+        file.delete();
+    }
+
+    private File makeReport(String name) {
+        File dir = new File(mRoot, name);
+        dir.mkdirs();
+        return dir;
+    }
+
+    private UploadRetryQueue reload() {
+        UploadRetryQueue queue = new UploadRetryQueue(mQueueFile);
+        queue.load();
+        return queue;
+    }
+
+    @Test
+    public void backoffGrowsAndIsCapped() {
+        UploadRetryQueue queue = reload();
+        File report = makeReport("1000");
+        assertTrue(queue.isEligible(report));
+        assertEquals(-1, queue.getNextRetryTime());
+
+        long delay = BASE_DELAY;
+        for (int i = 0; i < 12; i++) {
+            long before = System.currentTimeMillis();
+            queue.onFailure(report, -1);
+            assertFalse(queue.isEligible(report));
+            long expected = Math.min(delay, MAX_DELAY);
+            long next = queue.getNextRetryTime();
+            // 第一次失败的随机值可能小于BASE_DELAY，返回时被调整到BASE_DELAY之后
+            long after = System.currentTimeMillis();
+            assertTrue(next >= before + expected / 2);
+            assertTrue(next <= after + expected);
+            delay *= 2;
+        }
+    }
+
+    @Test
+    public void nextRetryTimeNotBeforeBaseDelay() throws Exception {
+        File report = makeReport("1000");
+        // 已经到期的记录
+        writeQueue("1 " + (System.currentTimeMillis() - 1000) + " -1 " + report.getAbsolutePath() + "\n");
+        UploadRetryQueue queue = reload();
+        assertTrue(queue.isEligible(report));
+        long now = System.currentTimeMillis();
+        assertTrue(queue.getNextRetryTime() >= now + BASE_DELAY);
+    }
+
+    @Test
+    public void saveAndLoad() {
+        File a = makeReport("1000");
+        File b = makeReport("2000");
+        UploadRetryQueue queue = reload();
+        queue.onFailure(a, -3);
+        queue.onFailure(b, -4);
+        queue.save();
+        assertTrue(mQueueFile.exists());
+
+        queue = reload();
+        assertFalse(queue.isEligible(a));
+        assertFalse(queue.isEligible(b));
+
+        queue.remove(a);
+        queue.save();
+        queue = reload();
+        assertTrue(queue.isEligible(a));
+        assertFalse(queue.isEligible(b));
+
+        // 队列为空时删除文件
+        queue.remove(b);
+        queue.save();
+        assertFalse(mQueueFile.exists());
+    }
+
+    @Test
+    public void moveKeepsRecord() {
+        File dir = makeReport("1000");
+        File key = new File(new File(mRoot, "crash_records.seg").getAbsolutePath() + "#1000_HASH");
+        UploadRetryQueue queue = reload();
+        queue.onFailure(dir, -1);
+        queue.move(dir, key);
+        assertTrue(queue.isEligible(dir));
+        assertFalse(queue.isEligible(key));
+    }
+
+    @Test
+    public void loadPrunesMissingReports() throws Exception {
+        File kept = makeReport("1000");
+        File deleted = makeReport("2000");
+        File segment = new File(mRoot, "crash_records.seg");
+        assertTrue(segment.createNewFile());
+        File record = new File(segment.getAbsolutePath() + "#3000_HASH");
+        File missingRecord = new File(new File(mRoot, "missing.seg").getAbsolutePath() + "#4000_HASH");
+
+        UploadRetryQueue queue = reload();
+        queue.onFailure(kept, -1);
+        queue.onFailure(deleted, -1);
+        queue.onFailure(record, -1);
+        queue.onFailure(missingRecord, -1);
+        queue.save();
+        assertTrue(deleted.delete());
+
+        queue = reload();
+        assertFalse(queue.isEligible(kept));
+        assertFalse(queue.isEligible(record));
+        assertTrue(queue.isEligible(deleted));
+        assertTrue(queue.isEligible(missingRecord));
+
+        // 清理结果被保存
+        queue.save();
+        assertTrue(segment.delete());
+        assertTrue(kept.delete());
+        queue = reload();
+        queue.save();
+        assertFalse(mQueueFile.exists());
+    }
+
+    @Test
+    public void ignoresBrokenLines() throws Exception {
+        File report = makeReport("1000");
+        writeQueue("broken\n1 " + (System.currentTimeMillis() + BASE_DELAY) + " -1 " + report.getAbsolutePath() + "\n");
+        assertFalse(reload().isEligible(report));
+    }
+
+    private void writeQueue(String content) throws Exception {
+        FileOutputStream out = new FileOutputStream(mQueueFile);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package tech.jcjc.crashcollection.crashupload;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * UploadRetryScheduler合并多次请求，只保留最早的时间
+ */
+public class UploadRetrySchedulerTest {
+    private final AtomicInteger mRuns = new AtomicInteger();
+
+    private volatile CountDownLatch mLatch;
+
+    private UploadRetryScheduler mScheduler;
+
+    @Before
+    public void setUp() throws Exception {
+        mLatch = new CountDownLatch(1);
+        mScheduler = new UploadRetryScheduler(new Runnable() {
+            @Override
+            public void run() {
+                mRuns.incrementAndGet();
+                mLatch.countDown();
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        mScheduler.shutdown();
+    }
+
+    @Test
+    public void runsOnce() throws Exception {
+        mScheduler.schedule(System.currentTimeMillis() + 50);
+        assertTrue(mLatch.await(5, TimeUnit.SECONDS));
+        Thread.sleep(200);
+        assertEquals(1, mRuns.get());
+    }
+
+    @Test
+    public void pastTimeRunsImmediately() throws Exception {
+        mScheduler.schedule(System.currentTimeMillis() - 10000);
+        assertTrue(mLatch.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void laterRequestIgnored() throws Exception {
+        long start = System.currentTimeMillis();
+        mScheduler.schedule(start + 100);
+        mScheduler.schedule(start + 60000);
+        assertTrue(mLatch.await(5, TimeUnit.SECONDS));
+        Thread.sleep(200);
+        assertEquals(1, mRuns.get());
+    }
+
+    @Test
+    public void earlierRequestReplaces() throws Exception {
+        long start = System.currentTimeMillis();
+        mScheduler.schedule(start + 60000);
+        mScheduler.schedule(start + 100);
+        assertTrue(mLatch.await(5, TimeUnit.SECONDS));
+        Thread.sleep(200);
+        assertEquals(1, mRuns.get());
+    }
+
+    @Test
+    public void canScheduleAgainAfterRun() throws Exception {
+        mScheduler.schedule(System.currentTimeMillis());
+        assertTrue(mLatch.await(5, TimeUnit.SECONDS));
+        mLatch = new CountDownLatch(1);
+        // 第一个任务执行后标记已清除，新的请求不会因为时间更晚被忽略
+        mScheduler.schedule(System.currentTimeMillis() + 50);
+        assertTrue(mLatch.await(5, TimeUnit.SECONDS));
+        assertEquals(2, mRuns.get());
+    }
+
+    @Test
+    public void cancelAndShutdown() throws Exception {
+        mScheduler.schedule(System.currentTimeMillis() + 200);
+        mScheduler.cancel();
+        Thread.sleep(400);
+        assertEquals(0, mRuns.get());
+
+        mScheduler.shutdown();
+        // shutdown后的请求被忽略
+        mScheduler.schedule(System.currentTimeMillis());
+        Thread.sleep(200);
+        assertEquals(0, mRuns.get());
+    }
+}
@@ -0,0 +1,148 @@
+package tech.jcjc.crashcollection.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * CrashRateLimiter的令牌桶：补充、容量上限、被抑制次数的累计和系统时间回退
+ */
+public class CrashRateLimiterTest {
+    private static final String HASH = "0123456789ABCDEF0123456789ABCDEF";
+
+    // 足够长，测试过程中不会自然补充令牌
+    private static final long INTERVAL = 3600 * 1000L;
+
+    private File mDir;
+
+    @Before
+    public void setUp() throws Exception {
+        mDir = File.createTempFile("rate_limit", "");
+        mDir.delete();
+        mDir.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    private void writeState(long tokens, long lastRefill, long suppressed) throws Exception {
+        FileOutputStream out = new FileOutputStream(new File(mDir, HASH));
+        try {
+            out.write((tokens + " " + lastRefill + " " + suppressed).getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    private long[] readState() throws Exception {
+        FileInputStream in = new FileInputStream(new File(mDir, HASH));
+        try {
+            byte[] data = new byte[64];
+            String[] fields = new String(data, 0, in.read(data), "UTF-8").split(" ");
+            return new long[]{Long.parseLong(fields[0]), Long.parseLong(fields[1]), Long.parseLong(fields[2])};
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void burstThenSuppressed() {
+        CrashRateLimiter limiter = new CrashRateLimiter(null, mDir);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, limiter.tryAcquire(HASH, 3, INTERVAL));
+        }
+        assertEquals(-1, limiter.tryAcquire(HASH, 3, INTERVAL));
+        assertEquals(-1, limiter.tryAcquire(HASH, 3, INTERVAL));
+        // 其他hash不受影响
+        assertEquals(0, limiter.tryAcquire("OTHER", 3, INTERVAL));
+        // 没有写入留下的临时文件
+        assertFalse(new File(mDir, HASH + ".tmp").exists());
+    }
+
+    @Test
+    public void suppressedCountCarriesOver() throws Exception {
+        CrashRateLimiter limiter = new CrashRateLimiter(null, mDir);
+        assertEquals(0, limiter.tryAcquire(HASH, 1, INTERVAL));
+        assertEquals(-1, limiter.tryAcquire(HASH, 1, INTERVAL));
+        assertEquals(-1, limiter.tryAcquire(HASH, 1, INTERVAL));
+
+        // 新的实例(进程重启)读取同一个状态文件，补充一个令牌后返回此前被抑制的次数
+        long[] state = readState();
+        assertEquals(0, state[0]);
+        assertEquals(2, state[2]);
+        writeState(0, state[1] - INTERVAL, state[2]);
+        limiter = new CrashRateLimiter(null, mDir);
+        assertEquals(2, limiter.tryAcquire(HASH, 1, INTERVAL));
+        assertEquals(0, readState()[2]);
+        assertEquals(-1, limiter.tryAcquire(HASH, 1, INTERVAL));
+    }
+
+    @Test
+    public void refillKeepsRemainder() throws Exception {
+        long now = System.currentTimeMillis();
+        // 过去了2.5个间隔，补充2个令牌，剩余的半个间隔保留到下一次
+        writeState(0, now - INTERVAL * 5 / 2, 0);
+        CrashRateLimiter limiter = new CrashRateLimiter(null, mDir);
+        assertEquals(0, limiter.tryAcquire(HASH, 5, INTERVAL));
+        long[] state = readState();
+        assertEquals(1, state[0]);
+        assertEquals(now - INTERVAL / 2, state[1]);
+        assertEquals(0, limiter.tryAcquire(HASH, 5, INTERVAL));
+        assertEquals(-1, limiter.tryAcquire(HASH, 5, INTERVAL));
+    }
+
+    @Test
+    public void refillCappedAtBurst() throws Exception {
+        writeState(0, System.currentTimeMillis() - INTERVAL * 100, 0);
+        CrashRateLimiter limiter = new CrashRateLimiter(null, mDir);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, limiter.tryAcquire(HASH, 3, INTERVAL));
+        }
+        assertEquals(-1, limiter.tryAcquire(HASH, 3, INTERVAL));
+    }
+
+    @Test
+    public void clockRollbackRestartsTiming() throws Exception {
+        long future = System.currentTimeMillis() + INTERVAL * 10;
+        writeState(0, future, 4);
+        CrashRateLimiter limiter = new CrashRateLimiter(null, mDir);
+        // 不补充令牌，只把计时起点调整到现在
+        assertEquals(-1, limiter.tryAcquire(HASH, 3, INTERVAL));
+        long[] state = readState();
+        assertEquals(0, state[0]);
+        assertTrue(state[1] <= System.currentTimeMillis());
+        assertEquals(5, state[2]);
+    }
+
+    @Test
+    public void brokenStateResetsBucket() throws Exception {
+        FileOutputStream out = new FileOutputStream(new File(mDir, HASH));
+        out.write("1 2".getBytes("UTF-8"));
+        out.close();
+        CrashRateLimiter limiter = new CrashRateLimiter(null, mDir);
+        assertEquals(0, limiter.tryAcquire(HASH, 2, INTERVAL));
+        assertEquals(1, readState()[0]);
+    }
+
+    @Test
+    public void disabledPolicy() {
+        CrashRateLimiter limiter = new CrashRateLimiter(null, mDir);
+        assertEquals(0, limiter.tryAcquire(HASH, 0, INTERVAL));
+        assertEquals(0, limiter.tryAcquire(HASH, 1, 0));
+        assertFalse(new File(mDir, HASH).exists());
+    }
+}
@@ -0,0 +1,108 @@
+package tech.jcjc.crashcollection.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * LogRingBuffer的容量、覆盖和遍历顺序
+ */
+public class LogRingBufferTest {
+    private static class Collector implements LogRingBuffer.Visitor {
+        final List<LogRingBuffer.Entry> entries = new ArrayList<LogRingBuffer.Entry>();
+
+        @Override
+        public void visit(LogRingBuffer.Entry entry) {
+            entries.add(entry);
+        }
+    }
+
+    @Test
+    public void capacityRoundedUp() {
+        assertEquals(1, new LogRingBuffer(0).getCapacity());
+        assertEquals(1, new LogRingBuffer(1).getCapacity());
+        assertEquals(8, new LogRingBuffer(5).getCapacity());
+        assertEquals(256, new LogRingBuffer(256).getCapacity());
+    }
+
+    @Test
+    public void keepsOrderBeforeWrap() {
+        LogRingBuffer buffer = new LogRingBuffer(8);
+        for (int i = 0; i < 5; i++) {
+            buffer.add(1, 2, 3, "tag", "message" + i);
+        }
+        Collector collector = new Collector();
+        assertEquals(5, buffer.visit(100, collector));
+        for (int i = 0; i < 5; i++) {
+            LogRingBuffer.Entry entry = collector.entries.get(i);
+            assertEquals(i, entry.sequence);
+            assertEquals("message" + i, entry.message);
+            assertEquals("tag", entry.tag);
+            assertEquals(1, entry.pid);
+            assertEquals(2, entry.tid);
+            assertEquals(3, entry.priority);
+        }
+    }
+
+    @Test
+    public void overwritesOldest() {
+        LogRingBuffer buffer = new LogRingBuffer(4);
+        for (int i = 0; i < 10; i++) {
+            buffer.add(0, 0, 0, "t", String.valueOf(i));
+        }
+        assertEquals(10, buffer.getTotalCount());
+        Collector collector = new Collector();
+        assertEquals(4, buffer.visit(100, collector));
+        assertEquals("6", collector.entries.get(0).message);
+        assertEquals("9", collector.entries.get(3).message);
+
+        // limit只取最近的几条
+        collector = new Collector();
+        assertEquals(2, buffer.visit(2, collector));
+        assertEquals("8", collector.entries.get(0).message);
+        assertEquals("9", collector.entries.get(1).message);
+    }
+
+    @Test
+    public void emptyBuffer() {
+        Collector collector = new Collector();
+        assertEquals(0, new LogRingBuffer(4).visit(10, collector));
+        assertTrue(collector.entries.isEmpty());
+    }
+
+    @Test
+    public void concurrentWriters() throws Exception {
+        final LogRingBuffer buffer = new LogRingBuffer(64);
+        final int perThread = 10000;
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            final int tid = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < perThread; j++) {
+                        buffer.add(0, tid, 0, "t", String.valueOf(j));
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(perThread * threads.length, buffer.getTotalCount());
+
+        // 写入很慢的线程可能用旧记录覆盖槽位，这样的槽位被跳过，其余记录按序号递增且都在最近的窗口内
+        Collector collector = new Collector();
+        int count = buffer.visit(64, collector);
+        assertTrue(count > 0 && count <= 64);
+        long last = buffer.getTotalCount() - 65;
+        for (LogRingBuffer.Entry entry : collector.entries) {
+            assertTrue(entry.sequence > last);
+            last = entry.sequence;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package tech.jcjc.crashcollection.utils;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * PrefixMatcher的结果必须与逐个startsWith相同
+ */
+public class PrefixMatcherTest {
+    private static boolean linearMatches(String[] prefixes, String s) {
+        for (String prefix : prefixes) {
+            if (s.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Test
+    public void basic() {
+        PrefixMatcher matcher = new PrefixMatcher(new String[]{"android.", "java.", "com.android."});
+        assertTrue(matcher.matches("android.os.Handler"));
+        assertTrue(matcher.matches("java.lang.Thread"));
+        assertTrue(matcher.matches("com.android.internal.os.ZygoteInit"));
+        assertTrue(matcher.matches("android."));
+        assertFalse(matcher.matches("android"));
+        assertFalse(matcher.matches("androidx.core.Foo"));
+        assertFalse(matcher.matches("com.example.Foo"));
+        assertFalse(matcher.matches(""));
+        assertFalse(matcher.matches(null));
+    }
+
+    @Test
+    public void redundantPrefixesRemoved() {
+        PrefixMatcher matcher = new PrefixMatcher(new String[]{"android.", "android.os.", "java."}, new String[]{"android.", null, "javax."});
+        assertArrayEquals(new String[]{"android.", "java.", "javax."}, matcher.getPrefixes());
+        assertTrue(matcher.matches("android.os.Looper"));
+        assertTrue(matcher.matches("javax.net.ssl.SSLSocket"));
+    }
+
+    @Test
+    public void emptyLists() {
+        assertFalse(new PrefixMatcher().matches("android.os.Handler"));
+        assertFalse(new PrefixMatcher((String[]) null).matches("android.os.Handler"));
+        // 空前缀匹配所有字符串
+        assertTrue(new PrefixMatcher(new String[]{""}).matches("anything"));
+    }
+
+    @Test
+    public void sameAsLinear() {
+        Random random = new Random(1);
+        char[] alphabet = {'a', 'b', '.', 'c'};
+        for (int round = 0; round < 200; round++) {
+            String[] prefixes = new String[random.nextInt(8) + 1];
+            for (int i = 0; i < prefixes.length; i++) {
+                prefixes[i] = randomString(random, alphabet, 1, 4);
+            }
+            PrefixMatcher matcher = new PrefixMatcher(prefixes);
+            for (int i = 0; i < 50; i++) {
+                String s = randomString(random, alphabet, 0, 6);
+                assertEquals(linearMatches(prefixes, s), matcher.matches(s));
+            }
+        }
+    }
+
+    private static String randomString(Random random, char[] alphabet, int minLength, int maxLength) {
+        int length = minLength + random.nextInt(maxLength - minLength + 1);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            sb.append(alphabet[random.nextInt(alphabet.length)]);
+        }
+        return sb.toString();
+    }
+}